@@ -0,0 +1,65 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 缓存相关的配置,对应application.yaml里的 hmdp.cache
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * CacheClient的本地一级缓存配置
+     */
+    private Local local = new Local();
+
+    /**
+     * 店铺id布隆过滤器的配置
+     */
+    private Bloom bloom = new Bloom();
+
+    @Data
+    public static class Local {
+        /**
+         * 是否在Redis前面加一层本地缓存
+         */
+        private boolean enabled = true;
+
+        /**
+         * 本地缓存最多保存的key数量,超过后按LRU淘汰
+         */
+        private int maxSize = 10000;
+
+        /**
+         * 本地缓存的有效毫秒数,即使漏掉了失效通知,节点之间的不一致也不会超过这个时间
+         */
+        private long ttlMillis = 30000;
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 是否用布隆过滤器拦截不存在的店铺id
+         */
+        private boolean enabled = true;
+
+        /**
+         * 预计的店铺数量,决定位数组大小,店铺数超过它误判率会升高
+         */
+        private long expectedInsertions = 100000;
+
+        /**
+         * 期望的误判率
+         */
+        private double fpp = 0.01;
+
+        /**
+         * 从Redis的bitmap合并到本地的间隔毫秒数
+         */
+        private long syncIntervalMillis = 60000;
+    }
+}
@@ -0,0 +1,52 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdGenerator;
+import com.hmdp.utils.SnowflakeWorkerIdLease;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * 选择id生成器 hmdp.id.generator:
+ * redis(默认):RedisIdWorker,每个id(或者每个号段)访问一次Redis
+ * snowflake:SnowflakeIdGenerator,本地生成,workerId启动时从Redis租
+ * 两种id带不同的标记位,不会重叠;但snowflake的id总是更大,只能从redis单向切到snowflake
+ */
+@Configuration
+public class IdGeneratorConfig {
+
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "hmdp.id.generator", havingValue = "redis", matchIfMissing = true)
+    public IdGenerator idGenerator(RedisIdWorker redisIdWorker) {
+        return redisIdWorker;
+    }
+
+    @Configuration
+    @ConditionalOnProperty(name = "hmdp.id.generator", havingValue = "snowflake")
+    public static class SnowflakeConfig {
+
+        @Value("${hmdp.id.snowflake.worker-ttl-seconds:60}")
+        private long workerTtlSeconds;
+
+        @Value("${hmdp.id.snowflake.max-backward-millis:10}")
+        private long maxBackwardMillis;
+
+        @Bean(destroyMethod = "release")
+        public SnowflakeWorkerIdLease snowflakeWorkerIdLease(StringRedisTemplate stringRedisTemplate) {
+            return new SnowflakeWorkerIdLease(stringRedisTemplate, workerTtlSeconds);
+        }
+
+        @Bean
+        @Primary
+        public IdGenerator idGenerator(SnowflakeWorkerIdLease snowflakeWorkerIdLease) {
+            snowflakeWorkerIdLease.acquire();
+            return new SnowflakeIdGenerator(snowflakeWorkerIdLease, maxBackwardMillis);
+        }
+    }
+}
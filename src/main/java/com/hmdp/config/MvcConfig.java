@@ -1,5 +1,6 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
@@ -15,6 +16,9 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillProperties seckillProperties;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登录拦截器
@@ -29,6 +33,8 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/voucher/**"
                 ).order(1);
+        //管理员拦截器,死信队列的查询和重投只对管理员开放
+        registry.addInterceptor(new AdminInterceptor(seckillProperties)).addPathPatterns("/voucher-order/dlq/**").order(2);
         //order设置这个拦截优先
         //token刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
@@ -1,20 +1,35 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
 import org.redisson.config.SingleServerConfig;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class RedissonConfig {
 
+    //和spring.redis用同一个Redis,换环境(比如压测用本地Redis)时只需要改一处
+    @Value("${spring.redis.host}")
+    private String host;
+
+    @Value("${spring.redis.port:6379}")
+    private int port;
+
+    @Value("${spring.redis.password:}")
+    private String password;
+
     @Bean
     public RedissonClient redissonClient() {
         //配置
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://192.168.200.130:6379").setPassword("123456");
+        SingleServerConfig server = config.useSingleServer().setAddress("redis://" + host + ":" + port);
+        if (StrUtil.isNotBlank(password)) {
+            server.setPassword(password);
+        }
         //创建RedissonClient对象
         return Redisson.create(config);
     }
@@ -0,0 +1,158 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 秒杀相关的配置,对应application.yaml里的 hmdp.seckill
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 订单消息队列(stream.orders)的消费配置
+     */
+    private Order order = new Order();
+
+    /**
+     * 本地售罄标记的有效毫秒数,过期后会放一个请求去Redis重新确认
+     */
+    private long soldOutTtlMillis = 10000;
+
+    /**
+     * 本地秒杀券快照的定时刷新间隔毫秒数,SeckillVoucherCache通过占位符直接读取
+     */
+    private long voucherRefreshMillis = 60000;
+
+    /**
+     * 本地库存租约的配置
+     */
+    private StockLease stockLease = new StockLease();
+
+    /**
+     * 秒杀开始前的预热配置
+     */
+    private Preheat preheat = new Preheat();
+
+    /**
+     * 订单stream归档裁剪的配置
+     */
+    private Archive archive = new Archive();
+
+    /**
+     * 可以访问运维接口(死信队列的查询和重投)的用户id,为空表示谁都不能访问
+     */
+    private List<Long> adminUserIds = new ArrayList<>();
+
+    @Data
+    public static class Order {
+        /**
+         * 订单stream的分区数,分区key是 stream.orders:{p},p = voucherId % partitions
+         * 同一张优惠券的订单总是进同一个分区,保证顺序
+         */
+        private int partitions = 4;
+        /**
+         * 一次XREADGROUP最多读取的消息数量,也是一个批次最多落库的订单数
+         */
+        private int batchSize = 100;
+        /**
+         * 凑批次最多等待的毫秒数,读到第一条消息后,最多再等这么久凑满一个批次
+         */
+        private long maxLingerMillis = 50;
+        /**
+         * 每个JVM启动的消费者数量
+         */
+        private int consumers = 2;
+        /**
+         * pending消息空闲超过这个毫秒数,就认为它的消费者已经宕机,由其他消费者接管
+         */
+        private long reclaimIdleMillis = 60000;
+        /**
+         * 检查并接管pending消息的间隔毫秒数
+         */
+        private long reclaimIntervalMillis = 5000;
+        /**
+         * 合并落库的窗口毫秒数,窗口内所有消费者的订单在一个事务里落库,每张券只更新一次库存
+         * 小于等于0表示不合并,每个消费者自己落库
+         */
+        private long flushWindowMillis = 20;
+        /**
+         * 一次合并落库最多的订单数
+         */
+        private int flushMaxOrders = 2000;
+        /**
+         * 一条消息最多投递几次,处理失败达到这个次数就转到死信队列 stream.orders.dlq
+         */
+        private int maxDeliveries = 5;
+        /**
+         * 消息写入stream后至少重试这么多毫秒才会转到死信队列,和maxDeliveries同时满足才转
+         */
+        private long deadLetterAfterMillis = 60000;
+        /**
+         * 停机时等待消费者处理完手上批次的最长毫秒数,要小于spring.lifecycle.timeout-per-shutdown-phase
+         */
+        private long drainTimeoutMillis = 20000;
+    }
+
+    @Data
+    public static class StockLease {
+        /**
+         * 是否开启本地库存租约,开启后每个节点从Redis批量租库存到本地来卖
+         */
+        private boolean enabled = false;
+        /**
+         * 一次从Redis租多少库存
+         */
+        private int size = 200;
+        /**
+         * 本地剩余库存小于等于这个数时,异步再租一批
+         */
+        private int lowWaterMark = 40;
+        /**
+         * 检查已经结束的秒杀券、归还剩余租约的间隔毫秒数,SeckillStockLease通过占位符直接读取
+         */
+        private long returnIntervalMillis = 10000;
+    }
+
+    @Data
+    public static class Preheat {
+        /**
+         * 开始时间在多少分钟以内的秒杀券需要预热
+         */
+        private long aheadMinutes = 5;
+        /**
+         * 检查即将开始的秒杀券的间隔毫秒数,VoucherServiceImpl的预热任务通过占位符直接读取
+         */
+        private long intervalMillis = 30000;
+        /**
+         * 预热时空跑多少次秒杀流程,让JIT编译热点代码、连接池建好连接
+         */
+        private int warmUpRounds = 200;
+    }
+
+    @Data
+    public static class Archive {
+        /**
+         * 是否开启订单stream的归档裁剪
+         */
+        private boolean enabled = true;
+        /**
+         * 归档文件所在的目录
+         */
+        private String dir = "archive";
+        /**
+         * 归档的间隔毫秒数,SeckillOrderArchiver通过占位符直接读取
+         */
+        private long intervalMillis = 60000;
+        /**
+         * 一次XRANGE读取并归档的消息数量
+         */
+        private int batchSize = 1000;
+    }
+}
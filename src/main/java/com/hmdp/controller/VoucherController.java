@@ -45,6 +45,17 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 补充秒杀券库存
+     * @param voucherId 秒杀券id
+     * @param count 补充的数量
+     * @return 无
+     */
+    @PostMapping("seckill/{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        return voucherService.addSeckillStock(voucherId, count);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
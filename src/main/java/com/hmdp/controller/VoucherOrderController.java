@@ -4,12 +4,18 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -36,4 +42,57 @@ public class VoucherOrderController {
 
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 一次抢多张秒杀券,同一个店铺同时开了好几张秒杀券时,客户端一次请求就够了
+     * @param voucherIds 秒杀券id列表
+     * @return 每张券的结果
+     */
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody List<Long> voucherIds) {
+        return voucherOrderService.seckillVouchers(voucherIds);
+    }
+
+    /**
+     * 优惠券秒杀的下单功能,异步版本
+     * 生成id和执行lua脚本都走Redis的异步接口,等待Redis的时候不占用Tomcat的线程
+     * 异步回调不在请求线程上,拿不到UserHolder,所以这里先把userId取出来传下去
+     * @param voucherId
+     * @return
+     */
+    @PostMapping("seckill/{id}/async")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId) {
+        Long userId = UserHolder.getUser().getId();
+        return voucherOrderService.seckillVoucherAsync(voucherId, userId);
+    }
+
+    /**
+     * 查询死信队列里最新的订单消息,只有管理员可以访问(AdminInterceptor)
+     * @param count 最多返回多少条
+     * @return
+     */
+    @GetMapping("dlq")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * 把一条死信消息重新投递到原来的订单stream,只有管理员可以访问(AdminInterceptor)
+     * @param id 死信消息id
+     * @return
+     */
+    @PostMapping("dlq/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") String id) {
+        return voucherOrderService.replayDeadLetter(id);
+    }
+
+    /**
+     * 查询秒杀订单的处理状态,客户端拿到订单id后轮询这个接口
+     * @param orderId
+     * @return
+     */
+    @GetMapping("{id}")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
 }
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,18 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行insert ... on duplicate key update id = id,一条sql插入一批订单
+     * 主键或者(user_id, voucher_id)唯一索引冲突的订单会被忽略,其他错误照常抛异常
+     * 返回值依赖jdbc连接参数useAffectedRows=true,否则冲突的行也会算成1
+     * @param orders 订单列表,不能为空
+     * @return 实际插入的行数
+     */
+    int insertBatchIgnoreDuplicate(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 查询tb_voucher_order上的(user_id, voucher_id)唯一索引uk_user_voucher是否存在,一人一单只靠它保证
+     * @return 存在返回大于0的数
+     */
+    int countUserVoucherUniqueIndex();
 }
@@ -28,5 +28,12 @@ public interface IShopService extends IService<Shop> {
      */
     Result update(Shop shop);
 
+    /**
+     * 新增店铺,并把店铺id加入布隆过滤器
+     * @param shop
+     * @return 店铺id
+     */
+    Result saveShop(Shop shop);
+
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
 }
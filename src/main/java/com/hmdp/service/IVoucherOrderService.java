@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -21,4 +24,47 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      */
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 一次抢多张秒杀券,一次生成所有订单id、一次执行lua脚本
+     * @param voucherIds 秒杀券id列表
+     * @return 每张券的结果
+     */
+    Result seckillVouchers(List<Long> voucherIds);
+
+    /**
+     * 秒杀优惠券的异步版本,生成id和执行lua脚本都不阻塞调用线程
+     * @param voucherId
+     * @param userId 当前用户,异步回调里拿不到UserHolder,由调用方传进来
+     * @return
+     */
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId, Long userId);
+
+    /**
+     * 查询当前用户秒杀订单的处理状态:queued(排队中)、persisted(已落库)、rejected(被拒绝,附带原因)
+     * 只查Redis,不查数据库
+     * @param orderId 秒杀接口返回的订单id
+     * @return
+     */
+    Result queryOrderStatus(Long orderId);
+
+    /**
+     * 查询死信队列stream.orders.dlq里最新的消息
+     * @param count 最多返回多少条
+     * @return
+     */
+    Result queryDeadLetters(Integer count);
+
+    /**
+     * 把一条死信消息重新投递到原来的订单stream,并从死信队列删除
+     * @param id 死信消息id
+     * @return
+     */
+    Result replayDeadLetter(String id);
+
+    /**
+     * 秒杀开始前预热:确保订单stream和消费者组存在,预加载lua脚本,并空跑几轮秒杀流程
+     * @param warmUpRounds 空跑的次数
+     */
+    void preheat(int warmUpRounds);
+
 }
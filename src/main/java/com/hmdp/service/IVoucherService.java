@@ -18,5 +18,13 @@ public interface IVoucherService extends IService<Voucher> {
 
     void addSeckillVoucher(Voucher voucher);
 
+    /**
+     * 给秒杀券补充库存,同时清除各个节点的售罄标记
+     * @param voucherId 秒杀券id
+     * @param count 补充的数量
+     * @return
+     */
+    Result addSeckillStock(Long voucherId, Integer count);
+
 
 }
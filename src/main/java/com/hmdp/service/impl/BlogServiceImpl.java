@@ -15,6 +15,7 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -24,9 +25,14 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -48,6 +54,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -56,20 +65,37 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
+        // 查询用户,整页一次批量查询
+        this.queryBlogUser(records);
         records.forEach(blog ->{
-            this.queryBlogUser(blog);
             //3.查询blog是否被点赞
             this.isBlogLiked(blog);
         });
         return Result.ok(records);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * 批量查询blog的作者,先查缓存,未命中的用户一次查数据库
+     */
+    private void queryBlogUser(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = cacheClient.getMany(RedisConstants.CACHE_USER_KEY, userIds, UserDTO.class,
+                this::loadUsers, RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user != null) {
+                blogs.get(i).setName(user.getNickName());
+                blogs.get(i).setIcon(user.getIcon());
+            }
+        }
+    }
+
+    /**
+     * 根据id批量查询用户,只缓存UserDTO里的公开字段
+     */
+    private Map<Long, UserDTO> loadUsers(Collection<Long> ids) {
+        return userService.listByIds(ids).stream()
+                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class)));
     }
 
     @Override
@@ -80,7 +106,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.fail("该笔记不存在~");
         }
         //2.查询blog有关的用户
-        queryBlogUser(blog);
+        queryBlogUser(Collections.singletonList(blog));
         //3.查询blog是否被点赞
          isBlogLiked(blog);
         return Result.ok(blog);
@@ -110,13 +136,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //2.判断当前用户是否点赞
         String key = RedisConstants.BLOG_LIKED_KEY + id;
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        //3.如果未点赞,可以进行点赞
+        //3.如果未点赞,可以进行点赞,点赞数变了要删除blog缓存
         if(score == null) {
             //3.1 数据库点赞数要+1
             boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
             //3.2 保存用户到Redis的scoreSet集合 zadd key value score
             if(isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
         }else {
             //4. 如果已经点赞,取消点赞
@@ -125,6 +152,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //4.2 把用户从Redis的set集合移除
             if(isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
         }
         return Result.ok();
@@ -217,14 +245,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        //4.根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        //这里要返回有序的 (select * from tb_user where id in(1, 2, 3, 4)order by field(id, 4, 1, 2,3);)
-        List<Blog> blogs = query().in("id", ids).last("order by field(id,"+ idStr +")").list();
+        //4.根据id批量查询blog,getMany按ids的顺序返回
+        //缓存里的对象是共享的,下面要设置作者和是否点赞,复制一份再改
+        List<Blog> blogs = cacheClient.getMany(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                        missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                        RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES)
+                .stream().filter(Objects::nonNull)
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
 
+        //查询blog有关的用户
+        queryBlogUser(blogs);
         for (Blog blog : blogs) {
-            //查询blog有关的用户
-            queryBlogUser(blog);
             //查询blog是否被点赞
             isBlogLiked(blog);
         }
@@ -10,6 +10,8 @@ import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -17,7 +19,9 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -37,6 +41,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     @Resource
     private IUserService userService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 关注和取关
      */
@@ -99,11 +106,12 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         }
         //3.解析id集合
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        //4.查询用户
-        List<User> users = userService.listByIds(ids);
-        List<UserDTO> userDTO = users.stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //4.批量查询用户,先查缓存,未命中的一次查数据库
+        List<UserDTO> userDTO = cacheClient.getMany(RedisConstants.CACHE_USER_KEY, ids, UserDTO.class,
+                        missIds -> userService.listByIds(missIds).stream()
+                                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                        RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES)
+                .stream().filter(Objects::nonNull).collect(Collectors.toList());
         return Result.ok(userDTO);
     }
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -11,8 +12,10 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CachePolicy;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.ibatis.annotations.DeleteProvider;
@@ -25,6 +28,7 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.util.*;
@@ -32,6 +36,8 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -51,6 +57,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
+    /**
+     * 店铺是热点数据,用逻辑过期,过期后返回旧数据异步重建;没有预热的店铺第一次查询按互斥锁加载
+     */
+    @PostConstruct
+    private void init() {
+        cacheClient.registerPolicy(RedisConstants.CACHE_SHOP_KEY,
+                CachePolicy.logicalExpire(RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES));
+    }
+
     /**
      * 根据id查询店铺
      * @param id
@@ -58,21 +76,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     @Override
     public Result queryById(Long id) {
-
-        //使用工具类解决缓存穿透 i -> getById(i) 可以写成 this::getById
-        Shop shop1 = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, i -> getById(i),
-                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        //使用工具类来解决缓存击穿.(这个有bug,得要商品预热,不然商品为null;具体预热,看测试类的testSaveShop这个方法)
-        Shop shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
-                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        if(shop != null) {
-            return Result.ok(shop);
-        }else if(shop1 != null) {
-            return Result.ok(shop1);
+        //按注册的缓存策略查询,一次Redis读取;缓存穿透、击穿都在工具类里处理
+        Shop shop = cacheClient.query(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById);
+        if (shop == null) {
+            return Result.fail("店铺不存在~");
         }
-        return Result.fail("店铺不存在~");
+        return Result.ok(shop);
     }
 
 
@@ -91,11 +100,25 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除redis缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        //2.删除redis缓存,并通知所有节点清掉本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
+    /**
+     * 新增店铺,写入数据库后把id加入布隆过滤器
+     * @param shop
+     * @return
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入布隆过滤器,否则新店铺会被当成不存在
+        shopBloomFilter.add(shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 查询附近店铺
      * @param typeId
@@ -142,11 +165,19 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        String idStr = StrUtil.join(",", ids);
-        //5.根据id查询Shop
-        List<Shop> shops = query().in("id", ids).last("order by field(id," + idStr + ")").list();
-        for (Shop shop : shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        //5.根据id批量查询Shop,先查缓存,未命中的一次查数据库,getMany按ids的顺序返回
+        List<Shop> cached = cacheClient.getMany(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop : cached) {
+            if (shop == null) {
+                continue;
+            }
+            //缓存里的对象是共享的,复制一份再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(copy.getId().toString()).getValue());
+            shops.add(copy);
         }
         //6返回
         return Result.ok(shops);
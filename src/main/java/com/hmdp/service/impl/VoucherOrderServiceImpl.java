@@ -1,7 +1,10 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
@@ -9,28 +12,44 @@ import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.OrderMessageCodec;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.SeckillOrderDeadLetter;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillVoucherCache;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>
@@ -42,25 +61,119 @@ import java.util.concurrent.Executors;
  */
 @Slf4j
 @Service
-public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
+public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService, SmartLifecycle {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
 
     @Resource
-    private RedissonClient redissonClient;
+    private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private RedisProperties redisProperties;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
+
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+
+    @Resource
+    private SeckillOrderDeadLetter seckillOrderDeadLetter;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    private static final DefaultRedisScript<Long> SECKILL_LEASED_SCRIPT;
+
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT;
+
+    /**
+     * 一次最多抢几张券
+     */
+    private static final int SECKILL_BATCH_MAX = 10;
+
+    /**
+     * 预热空跑用的秒杀券id、用户id和订单id,Redis里没有这张券的库存,脚本只会返回库存不足,不会写任何数据
+     * 订单id用固定值,不消耗真实的订单id序列
+     */
+    private static final Long WARM_UP_VOUCHER_ID = 0L;
+    private static final Long WARM_UP_USER_ID = 0L;
+    private static final long WARM_UP_ORDER_ID = 0L;
+
+    /**
+     * pending消息处理失败后的重试间隔,从1秒开始每次翻倍,最多8秒,不超过停机的排空时间
+     */
+    private static final long PENDING_RETRY_MIN_MILLIS = 1000;
+    private static final long PENDING_RETRY_MAX_MILLIS = 8000;
+
+    /**
+     * 连接池里除了阻塞读的消费者,至少还要留这么多连接给订单状态、接管pending消息、预热、刷新快照等其他Redis命令
+     */
+    private static final int REDIS_POOL_HEADROOM = 4;
+
+    /**
+     * 订单消费者线程池,每个线程是消费者组里的一个消费者
+     */
+    private ExecutorService seckillOrderExecutor;
+
+    /**
+     * 定时接管其他(已经宕机的)消费者pending-list里超时未确认的消息
+     */
+    private ScheduledExecutorService pendingReclaimExecutor;
+
+    /**
+     * 本JVM里所有消费者的名字
+     */
+    private final Set<String> localConsumers = new HashSet<>();
+
+    /**
+     * 本JVM负责接管pending消息的消费者名字
+     */
+    private String reclaimConsumer;
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /**
+     * 旧stream(stream.orders)是否已经排空,只用来打印一次日志
+     */
+    private volatile boolean legacyDrained;
+
+    /**
+     * 各个消费者提交过来等待合并落库的订单批次
+     */
+    private final BlockingQueue<OrderFlush> orderFlushQueue = new LinkedBlockingQueue<>();
+
+    /**
+     * 合并落库的线程,同一时间窗口内所有消费者的订单在一个事务里落库
+     */
+    private ExecutorService orderFlushExecutor;
+
+    /**
+     * 消费者是否在运行,停机时置为false,消费者处理完手上的批次就退出
+     */
+    private volatile boolean running;
+
+    /**
+     * 还没退出的消费者数量和正在处理的订单数量,停机排空时用来报告进度
+     */
+    private final AtomicInteger activeConsumers = new AtomicInteger();
+    private final AtomicInteger inFlightOrders = new AtomicInteger();
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
@@ -68,59 +181,554 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         //通知脚本我们接收的返回值是什么
         SECKILL_SCRIPT.setResultType(Long.class);
+
+        //本地库存租约模式下的脚本,不扣Redis库存
+        SECKILL_LEASED_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_LEASED_SCRIPT.setLocation(new ClassPathResource("seckill_leased.lua"));
+        SECKILL_LEASED_SCRIPT.setResultType(Long.class);
+
+        //一个用户一次抢多张券的脚本,返回每张券的结果
+        SECKILL_BATCH_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BATCH_SCRIPT.setLocation(new ClassPathResource("seckill_batch.lua"));
+        SECKILL_BATCH_SCRIPT.setResultType(List.class);
     }
 
-    //这个注解的意思:这个类初始化完毕之后,执行
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    /**
+     * 容器启动完成后启动订单消费者,由Spring管理生命周期,停机时先排空再退出
+     */
+    @Override
+    public void start() {
+        //一人一单只靠唯一索引保证,老库没有加索引的话直接启动失败,不能悄悄地允许重复下单
+        checkUserVoucherIndex();
+        running = true;
+        //0.合并落库的线程要先启动,消费者会把订单交给它
+        if (seckillProperties.getOrder().getFlushWindowMillis() > 0) {
+            orderFlushExecutor = Executors.newSingleThreadExecutor();
+            orderFlushExecutor.submit(new OrderFlusher());
+        }
+        //每个分区一个stream,每个stream都要有自己的消费者组
+        int partitions = orderPartitions();
+        for (int p = 0; p < partitions; p++) {
+            createOrderGroupIfAbsent(orderStreamKey(p));
+        }
+        //消费者名字 = 实例标识(pid@主机名) + 序号,保证集群里每个消费者唯一
+        String instance = ManagementFactory.getRuntimeMXBean().getName();
+        int consumers = Math.max(1, seckillProperties.getOrder().getConsumers());
+        checkRedisPool(partitions * consumers);
+        //每个分区都启动consumers个消费者
+        seckillOrderExecutor = Executors.newFixedThreadPool(partitions * consumers);
+        for (int i = 0; i < consumers; i++) {
+            String consumerName = instance + "-" + i;
+            localConsumers.add(consumerName);
+            for (int p = 0; p < partitions; p++) {
+                activeConsumers.incrementAndGet();
+                seckillOrderExecutor.submit(new VoucherOrderHandler(orderStreamKey(p), consumerName));
+            }
+        }
+        reclaimConsumer = instance + "-reclaim";
+        localConsumers.add(reclaimConsumer);
+        long interval = seckillProperties.getOrder().getReclaimIntervalMillis();
+        pendingReclaimExecutor = Executors.newSingleThreadScheduledExecutor();
+        pendingReclaimExecutor.scheduleWithFixedDelay(() -> {
+            for (int p = 0; p < partitions; p++) {
+                reclaimPendingOrders(orderStreamKey(p));
+            }
+            drainLegacyOrders();
+        }, interval, interval, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * 从消息队列中获取
+     * 检查tb_voucher_order上的(user_id, voucher_id)唯一索引,升级的老库要先执行db/alter_voucher_order_uk_user_voucher.sql
      */
-    private class VoucherOrderHandler implements Runnable {
+    private void checkUserVoucherIndex() {
+        if (getBaseMapper().countUserVoucherUniqueIndex() == 0) {
+            throw new IllegalStateException("tb_voucher_order缺少唯一索引uk_user_voucher(user_id, voucher_id),"
+                    + "不能保证一人一单,请先执行db/alter_voucher_order_uk_user_voucher.sql");
+        }
+    }
+
+    /**
+     * 每个消费者阻塞读XREADGROUP时独占连接池里的一个连接,直到读到消息或者超时
+     * 连接池不够的话,消费者会把连接全部占住,其他Redis命令都要排队等连接,有的消费者甚至拿不到连接,所以启动时直接报错
+     */
+    private void checkRedisPool(int blockingConsumers) {
+        RedisProperties.Pool pool = redisProperties.getLettuce().getPool();
+        //没有配置连接池时阻塞命令每次用单独的连接;max-active小于0表示不限制
+        if (pool == null || pool.getMaxActive() < 0) {
+            return;
+        }
+        int required = blockingConsumers + REDIS_POOL_HEADROOM;
+        if (pool.getMaxActive() < required) {
+            throw new IllegalStateException("spring.redis.lettuce.pool.max-active=" + pool.getMaxActive()
+                    + "不够用,订单消费者(partitions * consumers)要占用" + blockingConsumers
+                    + "个连接,至少需要配置成" + required);
+        }
+    }
+
+    /**
+     * 停机排空:不再拉取新消息,等消费者处理完并确认手上的批次,最多等drainTimeoutMillis
+     * 超时还没处理完的消息留在pending-list里,重启后或者由其他节点接管
+     * 在单独的线程里排空,排空期间定时打印进度,结束后通知Spring
+     */
+    @Override
+    public void stop(Runnable callback) {
+        running = false;
+        pendingReclaimExecutor.shutdown();
+        seckillOrderExecutor.shutdown();
+        Thread drain = new Thread(() -> {
+            try {
+                drainOrderConsumers();
+            } finally {
+                callback.run();
+            }
+        }, "seckill-order-drain");
+        drain.start();
+    }
+
+    private void drainOrderConsumers() {
+        long deadline = System.currentTimeMillis() + seckillProperties.getOrder().getDrainTimeoutMillis();
+        try {
+            while (!seckillOrderExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (System.currentTimeMillis() >= deadline) {
+                    log.warn("订单消费者排空超时, 还有{}个消费者未退出, {}条订单未确认,留给重启后处理",
+                            activeConsumers.get(), inFlightOrders.get());
+                    seckillOrderExecutor.shutdownNow();
+                    break;
+                }
+                log.info("正在排空订单消费者, 还有{}个消费者未退出, {}条订单处理中", activeConsumers.get(), inFlightOrders.get());
+            }
+            //正在执行的接管任务也可能在落库
+            long remain = deadline - System.currentTimeMillis();
+            if (!pendingReclaimExecutor.awaitTermination(Math.max(remain, 0), TimeUnit.MILLISECONDS)) {
+                pendingReclaimExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            seckillOrderExecutor.shutdownNow();
+            pendingReclaimExecutor.shutdownNow();
+        }
+        //消费者都退出了,合并落库的线程也可以停了
+        if (orderFlushExecutor != null) {
+            orderFlushExecutor.shutdownNow();
+        }
+        removeLocalConsumers();
+        log.info("订单消费者已停止");
+    }
+
+    /**
+     * 停机时把本节点自己的消费者从消费者组里删掉,避免重启后消费者组里越积越多
+     * 只删pending-list已经清空的消费者,XGROUP DELCONSUMER会连同它的pending消息一起删掉,有pending的留给其他节点接管
+     * 不删其他节点的消费者:Redis 7.2之前阻塞在XREADGROUP上的消费者idle也会一直增长,活着的节点也可能看起来不活跃
+     */
+    private void removeLocalConsumers() {
+        if (activeConsumers.get() > 0) {
+            //排空超时,还有消费者可能正在读消息,不能删
+            return;
+        }
+        try {
+            for (int p = 0; p < orderPartitions(); p++) {
+                String queueName = orderStreamKey(p);
+                StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(queueName, "g1");
+                for (int i = 0; i < consumers.size(); i++) {
+                    StreamInfo.XInfoConsumer consumer = consumers.get(i);
+                    if (localConsumers.contains(consumer.consumerName()) && consumer.pendingCount() == 0) {
+                        stringRedisTemplate.opsForStream().deleteConsumer(queueName, Consumer.from("g1", consumer.consumerName()));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.warn("停机时删除本节点的订单消费者失败", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stop(() -> { });
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 比Web服务器晚停止(phase越大越先停),最后一批请求写进stream的订单也能尽量处理完
+     */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 2;
+    }
+
+    /**
+     * 订单stream的分区数,lua脚本里用 voucherId % 分区数 选择分区
+     */
+    private int orderPartitions() {
+        return Math.max(1, seckillProperties.getOrder().getPartitions());
+    }
+
+    /**
+     * 分区对应的stream key: stream.orders:{p}
+     */
+    private static String orderStreamKey(int partition) {
+        return RedisConstants.SECKILL_ORDER_STREAM_KEY + "{" + partition + "}";
+    }
+
+    /**
+     * 创建消费者组 XGROUP CREATE stream.orders:{p} g1 0 MKSTREAM,已经存在就忽略
+     */
+    private void createOrderGroupIfAbsent(String queueName) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(queueName.getBytes(StandardCharsets.UTF_8), "g1", ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP说明组已经存在了,其他节点可能已经创建过
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 接管其他消费者超时未确认的消息
+     * 正常的消费者处理一批订单很快,pending-list里的消息长时间空闲,说明它的消费者已经宕机了
+     * XPENDING找出空闲超时的消息 -> XCLAIM转到自己名下 -> 读出来创建订单并确认
+     * XPENDING按id分页扫描整个pending-list,前面是本地消费者还没空闲超时的消息时,也能找到后面空闲超时的消息
+     */
+    private void reclaimPendingOrders(String queueName) {
+        try {
+            SeckillProperties.Order config = seckillProperties.getOrder();
+            Duration minIdle = Duration.ofMillis(config.getReclaimIdleMillis());
+            int batchSize = Math.max(1, config.getBatchSize());
+            //1.XPENDING stream.orders:{p} g1 start + count,从上一页最后一条的下一个id继续,直到扫完或者凑够一批
+            List<String> ids = new ArrayList<>();
+            Range<String> range = Range.unbounded();
+            while (ids.size() < batchSize) {
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(queueName, "g1", range, batchSize);
+                for (PendingMessage message : pending) {
+                    if (ids.size() < batchSize && !localConsumers.contains(message.getConsumerName())
+                            && message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                        ids.add(message.getIdAsString());
+                    }
+                }
+                if (pending.size() < batchSize) {
+                    break;
+                }
+                //不用 (id 这种排他的写法,它需要Redis 6.2
+                RecordId last = pending.get(pending.size() - 1).getId();
+                range = Range.rightUnbounded(Range.Bound.inclusive(last.getTimestamp() + "-" + (last.getSequence() + 1)));
+            }
+            //2.XCLAIM stream.orders:{p} g1 reclaimConsumer minIdle id...,带上minIdle,别的节点抢先接管了就不会重复接管
+            if (!ids.isEmpty()) {
+                stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                        connection.streamCommands().xClaimJustId(queueName.getBytes(StandardCharsets.UTF_8), "g1",
+                                reclaimConsumer, RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids.toArray(new String[0]))));
+            }
+            //3.处理自己名下的pending消息,包括之前接管了但处理失败的
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from("g1", reclaimConsumer),
+                    StreamReadOptions.empty().count(config.getBatchSize()),
+                    StreamOffset.create(queueName, ReadOffset.from("0"))
+            );
+            if (list != null && !list.isEmpty()) {
+                try {
+                    handleRecords(queueName, list);
+                } catch (Exception e) {
+                    //整批失败,逐条处理,失败次数太多的消息转入死信队列,下次接管时不会再卡住
+                    log.error("处理接管的订单消息异常,改为逐条处理", e);
+                    for (MapRecord<String, Object, Object> record : list) {
+                        handlePendingRecord(queueName, reclaimConsumer, record);
+                    }
+                }
+                log.info("接管了{}条其他消费者超时未确认的订单消息", list.size());
+            }
+        } catch (Exception e) {
+            log.error("接管pending订单异常", e);
+        }
+    }
+
+    /**
+     * 排空分区之前的旧stream(stream.orders)
+     * 升级时旧stream里还没读的、还在pending-list里的订单不会再有新版本的消费者去读,这里随接管任务一起定时处理:
+     * 空闲超时的pending消息按接管的逻辑处理,没读过的消息用接管消费者读出来落库;旧消息的格式由OrderMessageCodec兼容
+     * 滚动发布期间旧节点还在往旧stream写,所以只要key还在就一直处理;旧节点全部下线、日志显示旧stream已排空后,
+     * 手动 DEL stream.orders
+     */
+    private void drainLegacyOrders() {
+        String queueName = RedisConstants.SECKILL_ORDER_LEGACY_STREAM_KEY;
+        try {
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(queueName))) {
+                return;
+            }
+            createOrderGroupIfAbsent(queueName);
+            //1.pending消息:旧节点宕机或者下线前没确认的
+            reclaimPendingOrders(queueName);
+            //2.没有投递过的消息 XREADGROUP GROUP g1 reclaimConsumer COUNT n STREAMS stream.orders >
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from("g1", reclaimConsumer),
+                    StreamReadOptions.empty().count(seckillProperties.getOrder().getBatchSize()),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed())
+            );
+            if (list == null || list.isEmpty()) {
+                if (!legacyDrained && stringRedisTemplate.opsForStream().pending(queueName, "g1").getTotalPendingMessages() == 0) {
+                    legacyDrained = true;
+                    log.info("旧stream {} 已经排空,旧节点全部下线后可以删除", queueName);
+                }
+                return;
+            }
+            legacyDrained = false;
+            try {
+                handleRecords(queueName, list);
+            } catch (Exception e) {
+                log.error("处理旧stream的订单消息异常,改为逐条处理", e);
+                for (MapRecord<String, Object, Object> record : list) {
+                    handlePendingRecord(queueName, reclaimConsumer, record);
+                }
+            }
+            log.info("从旧stream {} 迁移处理了{}条订单消息", queueName, list.size());
+        } catch (Exception e) {
+            log.error("排空旧订单stream异常", e);
+        }
+    }
+
+    /**
+     * 解析一批消息,一个事务里批量创建订单,然后一次性确认 XACK s1 g1 id1 id2 ...
+     */
+    private void handleRecords(String queueName, List<MapRecord<String, Object, Object>> list) {
+        inFlightOrders.addAndGet(list.size());
+        try {
+            List<VoucherOrder> orders = new ArrayList<>(list.size());
+            RecordId[] recordIds = new RecordId[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                //批量抢券的消息里有多个订单
+                orders.addAll(parseOrders(list.get(i)));
+                recordIds[i] = list.get(i).getId();
+            }
+            persistOrders(orders);
+            //落库成功,先更新订单状态再确认消息,确认之后消息就不会再被处理了
+            markOrderStatus(orders);
+            stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", recordIds);
+        } finally {
+            inFlightOrders.addAndGet(-list.size());
+        }
+    }
+
+    /**
+     * 批量落库之后更新订单状态
+     * 插入时会忽略和已有订单(user_id, voucher_id)重复、但订单id不同的订单,这些订单实际上没有落库,
+     * 所以按订单id查回实际存在的订单:存在的是persisted(包括消息重复投递、之前已经落库的),不存在的是重复下单被拒绝
+     */
+    private void markOrderStatus(List<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        Set<Long> existing = queryExistingOrderIds(orders);
+        List<VoucherOrder> persisted = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            if (existing.contains(order.getId())) {
+                persisted.add(order);
+            } else {
+                seckillOrderStatus.markRejected(order, "不能重复下单");
+            }
+        }
+        seckillOrderStatus.markPersisted(persisted);
+    }
+
+    /**
+     * 查询这些订单里已经落库的订单id
+     */
+    private Set<Long> queryExistingOrderIds(List<VoucherOrder> orders) {
+        List<Long> ids = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            ids.add(order.getId());
+        }
+        return new HashSet<>(listObjs(new QueryWrapper<VoucherOrder>().select("id").in("id", ids),
+                id -> ((Number) id).longValue()));
+    }
+
+    /**
+     * 一个消费者提交过来的一批订单,落库完成后通知消费者确认消息
+     */
+    private static class OrderFlush {
+        private final List<VoucherOrder> orders;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        OrderFlush(List<VoucherOrder> orders) {
+            this.orders = orders;
+        }
+    }
+
+    /**
+     * 订单落库,开启了合并窗口的话,交给合并落库的线程,等它落库完成再返回
+     * 多个消费者的订单合并到一个事务里,每张券每个窗口只执行一次 stock = stock - n,
+     * 行锁竞争从每个批次一次降到每个窗口一次
+     */
+    private void persistOrders(List<VoucherOrder> orders) {
+        if (orderFlushExecutor == null) {
+            createVoucherOrders(orders);
+            return;
+        }
+        OrderFlush flush = new OrderFlush(orders);
+        orderFlushQueue.add(flush);
+        try {
+            flush.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待订单落库被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("订单落库失败", e.getCause());
+        }
+    }
+
+    /**
+     * 合并落库:拿到第一批订单后,在flushWindow时间内继续收集其他消费者的订单,然后一起落库
+     */
+    private class OrderFlusher implements Runnable {
         @Override
         public void run() {
-            String queueName = "stream.orders";
-            while(true) {
+            while (true) {
                 try {
-                    //1.获取消息队列中的订单信息 xreadgroup  group    g1 c1    count 1     block 2000  streams s1    >
-                    //                       获取      从哪个组获取 组名 消费者 读取消息数量 等待多少毫秒  队列名称      读取未消费的消息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //2.判断订单信息是否为空
-                    if(list == null || list.isEmpty()) {
-                        //如果为空,说明没有消息,继续下一次循环
-                        continue;
+                    //1.阻塞等待第一批订单
+                    OrderFlush first = orderFlushQueue.take();
+                    List<OrderFlush> flushes = new ArrayList<>();
+                    flushes.add(first);
+                    int count = first.orders.size();
+                    //2.在窗口时间内继续收集,直到凑够flushMaxOrders
+                    long deadline = System.currentTimeMillis() + seckillProperties.getOrder().getFlushWindowMillis();
+                    while (count < seckillProperties.getOrder().getFlushMaxOrders()) {
+                        long remain = deadline - System.currentTimeMillis();
+                        if (remain <= 0) {
+                            break;
+                        }
+                        OrderFlush next = orderFlushQueue.poll(remain, TimeUnit.MILLISECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        flushes.add(next);
+                        count += next.orders.size();
                     }
-                    //解析消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+                    //3.一起落库
+                    flush(flushes, count);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("合并落库订单异常", e);
+                }
+            }
+        }
 
-                    //3.创建订单信息
-                    createVoucherOrder(voucherOrder);
-                    //4.确认消息 XACK s1 g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+        private void flush(List<OrderFlush> flushes, int count) {
+            List<VoucherOrder> merged = new ArrayList<>(count);
+            for (OrderFlush flush : flushes) {
+                merged.addAll(flush.orders);
+            }
+            try {
+                createVoucherOrders(merged);
+                flushes.forEach(flush -> flush.done.complete(null));
+                return;
+            } catch (Exception e) {
+                if (flushes.size() == 1) {
+                    flushes.get(0).done.completeExceptionally(e);
+                    return;
+                }
+                log.error("合并落库失败,改为逐批落库", e);
+            }
+            //合并的事务失败了,逐批重试,不让一个消费者的坏数据拖累其他消费者
+            for (OrderFlush flush : flushes) {
+                try {
+                    createVoucherOrders(flush.orders);
+                    flush.done.complete(null);
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlerPendingList();
+                    flush.done.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 从消息队列中获取
+     */
+    private class VoucherOrderHandler implements Runnable {
+
+        private final String queueName;
+
+        private final String consumerName;
+
+        VoucherOrderHandler(String queueName, String consumerName) {
+            this.queueName = queueName;
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            try {
+                //停机时running变成false,处理完手上这一批就退出;阻塞读最多2秒,停机最多多等2秒
+                while(running) {
+                    try {
+                        //1.批量获取消息队列中的订单信息 xreadgroup group g1 consumerName count N block 2000 streams s1 >
+                        List<MapRecord<String, Object, Object>> list = readBatch();
+                        //2.判断订单信息是否为空
+                        if(list.isEmpty()) {
+                            //如果为空,说明没有消息,继续下一次循环
+                            continue;
+                        }
+                        //3.批量创建订单,并一次性确认整批消息;停机时读到的这一批也要处理完,否则只能等别人接管
+                        handleRecords(queueName, list);
+                    } catch (Exception e) {
+                        log.error("处理订单异常", e);
+                        handlerPendingList();
+                    }
+                }
+            } finally {
+                activeConsumers.decrementAndGet();
+            }
+        }
+
+        /**
+         * 凑一个批次:第一次阻塞读,读到消息后在maxLinger时间内继续读,直到凑满batchSize
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            int batchSize = Math.max(1, seckillProperties.getOrder().getBatchSize());
+            List<MapRecord<String, Object, Object>> first = stringRedisTemplate.opsForStream().read(
+                    Consumer.from("g1", consumerName),
+                    StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed())
+            );
+            if (first == null || first.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(first);
+            long deadline = System.currentTimeMillis() + seckillProperties.getOrder().getMaxLingerMillis();
+            //停机时不再凑批次,读到多少处理多少
+            while (running && batch.size() < batchSize) {
+                long remain = deadline - System.currentTimeMillis();
+                //注意block(0)是永久阻塞,所以剩余时间<=0时直接结束
+                if (remain <= 0) {
+                    break;
+                }
+                List<MapRecord<String, Object, Object>> more = stringRedisTemplate.opsForStream().read(
+                        Consumer.from("g1", consumerName),
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(remain)),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                if (more == null || more.isEmpty()) {
+                    break;
                 }
+                batch.addAll(more);
             }
+            return batch;
         }
 
         private void handlerPendingList() {
-            String queueName = "stream.orders";
-            while(true) {
+            long retryMillis = PENDING_RETRY_MIN_MILLIS;
+            //停机时剩下的pending消息留给重启后处理
+            while(running) {
+                boolean done = false;
                 try {
-                    //1.获取Pending-List中的订单信息 xreadgroup  group    g1 c1    count 1 streams s1    0
+                    //1.获取Pending-List中的订单信息 xreadgroup  group    g1 consumerName count 1 streams s1    0
                     //                               获取   从哪个组获取 组名 消费者 读取消息数量   队列名称      读取未消费的消息
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
+                            Consumer.from("g1", consumerName),
                             StreamReadOptions.empty().count(1),
                             StreamOffset.create(queueName, ReadOffset.from("0"))
                     );
@@ -129,23 +737,21 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         //如果为空,说明pending-list没有异常消息,结束循环
                         break;
                     }
-                    //解析消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-
-                    //3.创建订单信息
-                    createVoucherOrder(voucherOrder);
-                    //4.确认消息 XACK s1 g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    //3.处理这条消息,失败次数太多的转入死信队列,成功或者转入死信队列后直接处理下一条
+                    done = handlePendingRecord(queueName, consumerName, list.get(0));
                 } catch (Exception e) {
                     log.error("处理pending订单异常", e);
+                }
+                if (done) {
+                    retryMillis = PENDING_RETRY_MIN_MILLIS;
+                } else {
                     try {
-                        //避免频率太高,休眠一下
-                        Thread.sleep(1000);
+                        //避免频率太高,休眠一下;连续失败时退避,给数据库等依赖恢复的时间
+                        Thread.sleep(retryMillis);
                     } catch (InterruptedException ex) {
                         ex.printStackTrace();
                     }
+                    retryMillis = Math.min(retryMillis * 2, PENDING_RETRY_MAX_MILLIS);
                 }
             }
         }
@@ -153,46 +759,181 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
 
     /**
-     * 异步创建订单信息
+     * 逐条处理一条pending消息:创建订单、记录订单状态、确认消息
+     * 处理失败的话看投递次数,达到上限就转入死信队列,不再阻塞后面的消息
+     * @return 是否已经处理完(落库成功、被拒绝或者转入了死信队列)
      */
-    private void createVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-        //创建锁对象
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        //空参的话,默认30秒过期
-        //有一个是三个参数的,获取锁的最大等待时间(期间会重试), 锁自动释放时间, 时间单位
-        boolean isLock = redisLock.tryLock();
-        //判断锁
-        if (!isLock) {
-            log.error("不允许重复下单");
-            return;
+    private boolean handlePendingRecord(String queueName, String consumerName, MapRecord<String, Object, Object> record) {
+        //这一次已经落库或者被拒绝的订单,转入死信队列时不能再标记成被拒绝
+        Set<Long> handled = new HashSet<>();
+        try {
+            //1.解析消息,批量抢券的消息里有多个订单,逐个落库
+            for (VoucherOrder voucherOrder : parseOrders(record)) {
+                //2.创建订单信息,并记录订单状态
+                String rejectReason = createVoucherOrder(voucherOrder);
+                if (rejectReason == null) {
+                    seckillOrderStatus.markPersisted(Collections.singletonList(voucherOrder));
+                } else {
+                    seckillOrderStatus.markRejected(voucherOrder, rejectReason);
+                }
+                handled.add(voucherOrder.getId());
+            }
+            //3.确认消息 XACK s1 g1 id
+            stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+            return true;
+        } catch (Exception e) {
+            log.error("处理pending订单异常, id:{}", record.getId(), e);
+            if (!seckillOrderDeadLetter.moveIfExhausted(queueName, consumerName, record, e)) {
+                return false;
+            }
+            //转入了死信队列,告诉客户端没有落库的订单被拒绝了
+            markDeadLettered(record, handled);
+            return true;
         }
+    }
 
+    /**
+     * 消息转入死信队列后更新订单状态
+     * 之前的投递可能已经落库了一部分订单,所以先查数据库,只把这一次没处理、数据库里也没有的订单标记成被拒绝
+     * 数据库查不了的话不知道哪些已经落库,订单状态保持排队中,等人工重投死信消息后再更新
+     */
+    private void markDeadLettered(MapRecord<String, Object, Object> record, Set<Long> handled) {
+        List<VoucherOrder> orders;
         try {
-            //根据用户id和优惠券id查询订单的数量
-            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-            //判断用户是否已经有优惠券了
-            if (count > 0) {
-                log.error("不允许重复下单");
-                return;
+            orders = parseOrders(record);
+        } catch (Exception e) {
+            //消息本身就是坏的,没有订单状态可以更新
+            return;
+        }
+        List<VoucherOrder> pending = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            if (!handled.contains(order.getId())) {
+                pending.add(order);
             }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        Set<Long> existing;
+        try {
+            existing = queryExistingOrderIds(pending);
+        } catch (Exception e) {
+            log.error("查询死信消息里的订单是否已经落库失败, id:{}", record.getId(), e);
+            return;
+        }
+        for (VoucherOrder order : pending) {
+            if (existing.contains(order.getId())) {
+                seckillOrderStatus.markPersisted(Collections.singletonList(order));
+            } else {
+                seckillOrderStatus.markRejected(order, "订单处理失败,等待人工处理");
+            }
+        }
+    }
 
-            //5.扣减库存,setSql("stock = stock - 1")更新的字段,eq("voucher_id", voucherId)更新条件 这两个得要相等,
+    @Override
+    public Result queryDeadLetters(Integer count) {
+        int n = count == null || count <= 0 ? 20 : Math.min(count, 1000);
+        return Result.ok(seckillOrderDeadLetter.list(n));
+    }
+
+    @Override
+    public Result replayDeadLetter(String id) {
+        String error = seckillOrderDeadLetter.replay(id);
+        if (error != null) {
+            return Result.fail(error);
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 把stream里的消息解析成订单
+     */
+    private List<VoucherOrder> parseOrders(MapRecord<String, Object, Object> record) {
+        return OrderMessageCodec.decodeAll(record.getValue());
+    }
+
+    /**
+     * 批量创建订单,一个事务里完成,按优惠券分组:
+     * 多行insert忽略重复 -> 按实际插入的行数扣库存 update ... set stock = stock - n where voucher_id = ? and stock >= n
+     * 一人一单由lua脚本保证,消息重复投递产生的重复订单由(user_id, voucher_id)唯一索引忽略,
+     * 所以不需要分布式锁,也不需要先查询订单数量
+     */
+    private void createVoucherOrders(List<VoucherOrder> orders) {
+        transactionTemplate.executeWithoutResult(status -> {
+            //1.按优惠券分组,用TreeMap保证多个事务按相同的顺序加行锁,避免死锁
+            Map<Long, List<VoucherOrder>> byVoucher = new TreeMap<>();
+            for (VoucherOrder order : orders) {
+                byVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
+            }
+            for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+                Long voucherId = entry.getKey();
+                List<VoucherOrder> group = entry.getValue();
+                //2.多行insert忽略重复,返回值是实际插入的行数,重复的订单被唯一索引忽略
+                int inserted = getBaseMapper().insertBatchIgnoreDuplicate(group);
+                if (inserted < group.size()) {
+                    log.error("不允许重复下单, voucherId:{}, 忽略了{}条重复订单", voucherId, group.size() - inserted);
+                }
+                if (inserted == 0) {
+                    continue;
+                }
+                //3.每张券只扣一次库存
+                boolean success = seckillVoucherService.update().setSql("stock = stock - " + inserted)
+                        .eq("voucher_id", voucherId).ge("stock", inserted).update();
+                if (!success) {
+                    //数据库库存不够整组,整个事务回滚,消息留在pending-list里,由逐条处理的逻辑去处理
+                    throw new IllegalStateException("库存不足~ voucherId:" + voucherId + ", 需要扣减:" + inserted);
+                }
+            }
+        });
+    }
+
+    /**
+     * 异步创建订单信息,一个事务里先插入订单再扣库存
+     * 重复订单由(user_id, voucher_id)唯一索引忽略,不再需要分布式锁和查询订单数量
+     * @return 订单被拒绝的原因,落库成功(包括这个订单之前已经落库过)返回null
+     */
+    private String createVoucherOrder(VoucherOrder voucherOrder) {
+        Long voucherId = voucherOrder.getVoucherId();
+        return transactionTemplate.execute(status -> {
+            //1.insert忽略重复,返回0说明订单已经存在了
+            int inserted = getBaseMapper().insertBatchIgnoreDuplicate(Collections.singletonList(voucherOrder));
+            if (inserted == 0) {
+                //同一个订单id已经存在,说明是消息重复投递,订单之前已经落库了
+                if (getById(voucherOrder.getId()) != null) {
+                    return null;
+                }
+                log.error("不允许重复下单");
+                return "不能重复下单";
+            }
+            //2.扣减库存,setSql("stock = stock - 1")更新的字段,eq("voucher_id", voucherId)更新条件 这两个得要相等,
             //gt("stock", 0)乐观锁
             //sql语言大概是这样的: update xxx set stock = stock - 1 where voucher_id = voucher_id and stock > 0
             boolean success = seckillVoucherService.update().setSql("stock = stock - 1")
                     .eq("voucher_id", voucherId).gt("stock", 0).update();
             if (!success) {
-                //扣减失败
+                //扣减失败,回滚插入的订单
                 log.error("库存不足~");
-                return;
+                status.setRollbackOnly();
+                return "库存不足";
             }
-            save(voucherOrder);
-        } finally {
-            //释放锁
-            redisLock.unlock();
+            return null;
+        });
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        //只查Redis里的订单状态,不查数据库
+        Map<String, String> status = seckillOrderStatus.get(orderId);
+        //订单不是当前用户的,和订单不存在一样处理,不暴露别人的订单
+        if (status.isEmpty() || !UserHolder.getUser().getId().toString().equals(status.get("userId"))) {
+            return Result.fail("订单不存在或已过期~");
         }
+        Map<String, Object> data = new HashMap<>(8);
+        data.put("orderId", orderId);
+        data.put("voucherId", Long.valueOf(status.get("voucherId")));
+        data.put("status", status.get("status"));
+        data.put("reason", status.get("reason"));
+        return Result.ok(data);
     }
 
     /**
@@ -201,27 +942,247 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * @return
      */
     public Result seckillVoucher(Long voucherId) {
+        //0 先用本地数据校验,不合法的请求不用生成id也不用执行脚本
+        //0.1 根据本地快照判断秒杀券是否存在、秒杀是否开始或结束
+        Result invalid = checkSeckillVoucher(voucherId);
+        if (invalid != null) {
+            return invalid;
+        }
         //这里能拿到userID是因为登录的时候,在登录拦截器里保存下来了.
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId("order");
-        //1 执行lua脚本;没有key(因为key在lua脚本里,我们自己手动加上了),不要传null,传一个空集合;
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId));
-        int r = result.intValue();
+        //0.2 开启了本地库存租约,库存在本地扣,Redis只负责一人一单和发送订单消息
+        if (seckillProperties.getStockLease().isEnabled()) {
+            return seckillWithLease(voucherId, userId);
+        }
+        //0.3 本地已经标记售罄了,直接返回
+        if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        long orderId = idGenerator.nextId("order");
+        //1 执行lua脚本
+        int r = executeSeckillScript(voucherId, userId, orderId);
         //2 判断结果是否为0
         if(r != 0) {
             //2.1 不为0,代表没有购买资格
+            if (r == 1) {
+                //库存不足,标记售罄并通知其他节点
+                seckillSoldOutCache.markSoldOut(voucherId);
+            }
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
         //3 返回订单id
         return Result.ok(orderId);
     }
 
+    /**
+     * 一次抢多张秒杀券:本地校验后,一次INCRBY生成所有订单id,一次EVAL逐张判断并下单
+     * 同一个分区的订单在脚本里打包成一条消息,消费者一个事务里一起落库
+     * @return 每张券的结果 voucherId、success、orderId或errorMsg
+     */
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds) {
+        if (voucherIds == null || voucherIds.isEmpty()) {
+            return Result.fail("请选择要抢的秒杀券~");
+        }
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if (ids.size() > SECKILL_BATCH_MAX) {
+            return Result.fail("一次最多抢" + SECKILL_BATCH_MAX + "张秒杀券~");
+        }
+        Long userId = UserHolder.getUser().getId();
+        Map<Long, Map<String, Object>> results = new LinkedHashMap<>();
+        //本地库存租约模式下库存在本地扣,批量脚本不适用,逐张走租约的流程
+        boolean leased = seckillProperties.getStockLease().isEnabled();
+        //1.本地校验,不合法、本地已经售罄的券(以及租约模式下逐张抢的券)直接给出结果
+        List<Long> candidates = new ArrayList<>(ids.size());
+        for (Long voucherId : ids) {
+            Result decided = checkSeckillVoucher(voucherId);
+            if (decided == null && leased) {
+                decided = seckillWithLease(voucherId, userId);
+            } else if (decided == null && seckillSoldOutCache.isSoldOut(voucherId)) {
+                decided = Result.fail("库存不足");
+            }
+            if (decided == null) {
+                candidates.add(voucherId);
+                results.put(voucherId, null);
+            } else {
+                results.put(voucherId, batchItem(voucherId, decided));
+            }
+        }
+        if (!candidates.isEmpty()) {
+            //2.一次INCRBY拿到所有订单id
+            long[] orderIds = idGenerator.nextIds("order", candidates.size());
+            //3.一次EVAL,参数: 用户id 分区数 优惠券id1 订单id1 优惠券id2 订单id2 ...
+            List<String> args = new ArrayList<>(2 + candidates.size() * 2);
+            args.add(userId.toString());
+            args.add(String.valueOf(orderPartitions()));
+            for (int i = 0; i < candidates.size(); i++) {
+                args.add(candidates.get(i).toString());
+                args.add(String.valueOf(orderIds[i]));
+            }
+            List<?> codes = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, Collections.emptyList(), args.toArray());
+            for (int i = 0; i < candidates.size(); i++) {
+                Long voucherId = candidates.get(i);
+                int r = ((Number) codes.get(i)).intValue();
+                if (r == 1) {
+                    seckillSoldOutCache.markSoldOut(voucherId);
+                }
+                Result result = r == 0 ? Result.ok(orderIds[i]) : Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+                results.put(voucherId, batchItem(voucherId, result));
+            }
+        }
+        return Result.ok(new ArrayList<>(results.values()));
+    }
+
+    private static Map<String, Object> batchItem(Long voucherId, Result result) {
+        Map<String, Object> item = new LinkedHashMap<>(8);
+        item.put("voucherId", voucherId);
+        item.put("success", result.getSuccess());
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            item.put("orderId", result.getData());
+        } else {
+            item.put("errorMsg", result.getErrorMsg());
+        }
+        return item;
+    }
 
+    /**
+     * 根据本地快照判断秒杀券是否存在、秒杀是否开始或结束
+     * @return 校验不通过时返回失败结果,通过返回null
+     */
+    private Result checkSeckillVoucher(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherCache.get(voucherId);
+        if (voucher == null) {
+            return Result.fail("秒杀券不存在~");
+        }
+        LocalDateTime now = LocalDateTime.now();
+        if (voucher.getBeginTime().isAfter(now) || !seckillVoucherCache.isStockReady(voucherId)) {
+            return Result.fail("秒杀尚未开始~");
+        }
+        if (voucher.getEndTime().isBefore(now)) {
+            return Result.fail("秒杀已经结束~");
+        }
+        return null;
+    }
 
+    /**
+     * 异步秒杀:本地校验和同步版本一样,生成id(INCR)和执行lua脚本走Lettuce的异步连接,
+     * 请求线程在等待Redis的时候就已经还给Tomcat了
+     * 回调在Lettuce的IO线程上执行,里面不能有阻塞的Redis调用,售罄通知交给其他线程去发
+     */
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId, Long userId) {
+        Result invalid = checkSeckillVoucher(voucherId);
+        if (invalid != null) {
+            return CompletableFuture.completedFuture(invalid);
+        }
+        boolean leased = seckillProperties.getStockLease().isEnabled();
+        if (leased) {
+            //本地库存租约模式,先在本地扣库存
+            if (!seckillStockLease.tryAcquire(voucherId)) {
+                seckillSoldOutCache.markSoldOut(voucherId);
+                return CompletableFuture.completedFuture(Result.fail("库存不足"));
+            }
+        } else if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("库存不足"));
+        }
+        CompletableFuture<Result> future = idGenerator.nextIdAsync("order").thenCompose(orderId -> {
+            DefaultRedisScript<Long> script = leased ? SECKILL_LEASED_SCRIPT : SECKILL_SCRIPT;
+            List<String> args = Arrays.asList(voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                    String.valueOf(orderPartitions()));
+            return reactiveStringRedisTemplate.execute(script, Collections.emptyList(), args)
+                    .next().toFuture()
+                    .thenApply(result -> seckillResult(voucherId, orderId, result.intValue(), leased));
+        });
+        if (leased) {
+            future = future.whenComplete((result, e) -> {
+                if (e != null) {
+                    //没有下单成功,库存还回本地租约
+                    seckillStockLease.release(voucherId);
+                }
+            });
+        }
+        return future;
+    }
 
+    /**
+     * 把脚本的返回值转换成接口的返回结果
+     */
+    private Result seckillResult(Long voucherId, long orderId, int r, boolean leased) {
+        if (r == 0) {
+            return Result.ok(orderId);
+        }
+        if (leased) {
+            //重复下单,库存还回本地租约
+            seckillStockLease.release(voucherId);
+            return Result.fail("不能重复下单");
+        }
+        if (r == 1) {
+            //售罄通知要用阻塞的Redis调用,不能在Lettuce的IO线程上执行
+            CompletableFuture.runAsync(() -> seckillSoldOutCache.markSoldOut(voucherId));
+        }
+        return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+    }
 
+    /**
+     * 执行秒杀脚本;没有key(因为key在lua脚本里,我们自己手动加上了),不要传null,传一个空集合;
+     * 最后一个参数是订单stream的分区数(脚本里按voucherId选择分区)
+     * @return 0:下单成功 1:库存不足 2:重复下单
+     */
+    private int executeSeckillScript(Long voucherId, Long userId, long orderId) {
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId), String.valueOf(orderPartitions()));
+        return result.intValue();
+    }
 
+    @Override
+    public void preheat(int warmUpRounds) {
+        //1.Redis重启或者被清空过的话,stream和消费者组要重新创建
+        int partitions = orderPartitions();
+        for (int p = 0; p < partitions; p++) {
+            createOrderGroupIfAbsent(orderStreamKey(p));
+        }
+        //2.SCRIPT LOAD,秒杀开始后EVALSHA直接命中,不会先报NOSCRIPT再退回EVAL
+        stringRedisTemplate.execute((RedisCallback<String>) connection -> {
+            connection.scriptingCommands().scriptLoad(SECKILL_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+            connection.scriptingCommands().scriptLoad(SECKILL_BATCH_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+            return connection.scriptingCommands().scriptLoad(SECKILL_LEASED_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+        });
+        //3.用一个没有库存的秒杀券空跑执行脚本的流程,脚本返回库存不足,不产生订单
+        //  不调用markSoldOut,避免给不存在的券发售罄通知;不生成订单id,避免浪费真实的id
+        for (int i = 0; i < warmUpRounds; i++) {
+            executeSeckillScript(WARM_UP_VOUCHER_ID, WARM_UP_USER_ID, WARM_UP_ORDER_ID);
+        }
+    }
+
+    /**
+     * 基于本地库存租约的秒杀
+     * 先在本地租约里扣库存(纯内存),扣成功了再执行lua脚本判断一人一单并发送订单消息
+     */
+    private Result seckillWithLease(Long voucherId, Long userId) {
+        //1.本地扣库存,本地和Redis都没有库存了才算库存不足
+        if (!seckillStockLease.tryAcquire(voucherId)) {
+            seckillSoldOutCache.markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
+        long orderId;
+        Long result;
+        try {
+            orderId = idGenerator.nextId("order");
+            //2.执行lua脚本,只判断一人一单并发送订单消息
+            result = stringRedisTemplate.execute(SECKILL_LEASED_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId), String.valueOf(orderPartitions()));
+        } catch (RuntimeException e) {
+            //没有下单成功,库存还回本地租约
+            seckillStockLease.release(voucherId);
+            throw e;
+        }
+        if (result.intValue() != 0) {
+            //重复下单,库存还回本地租约
+            seckillStockLease.release(voucherId);
+            return Result.fail("不能重复下单");
+        }
+        return Result.ok(orderId);
+    }
 
     /**
      * 从阻塞队列中获取
@@ -1,19 +1,34 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillVoucherCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -23,12 +38,31 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 预热时已购用户每次SADD的数量,避免一条命令太大
+     */
+    private static final int PRELOAD_BUYERS_CHUNK = 1000;
+
+    /**
+     * 本节点已经空跑预热过的秒杀券id,每张券每个节点只空跑一次;券开始后不在预热窗口里了,会被移除
+     */
+    private final Set<Long> warmedUp = ConcurrentHashMap.newKeySet();
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -55,8 +89,106 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         //保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock());
+        //事务提交后通知所有节点刷新秒杀券快照
+        seckillVoucherCache.notifyChanged();
 
+    }
 
+    /**
+     * 补充秒杀库存:数据库和Redis都加上,再清除售罄标记
+     */
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0~");
+        }
+        //1.数据库加库存
+        boolean success = seckillVoucherService.update().setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId).update();
+        if (!success) {
+            return Result.fail("秒杀券不存在~");
+        }
+        //2.Redis加库存
+        stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId, count);
+        //3.清除本地和其他节点的售罄标记
+        seckillSoldOutCache.clearSoldOut(voucherId);
+        return Result.ok();
+    }
+
+    /**
+     * 秒杀开始前预热:定时找出开始时间在aheadMinutes分钟以内的秒杀券
+     * 1.抢到预热标记的节点用管道把库存和已经下过单的用户加载到Redis(Redis重启丢数据、或者库存是手工改的数据库)
+     * 2.每个节点都确保订单stream和消费者组存在,预加载lua脚本,并空跑几轮秒杀流程,让JIT和连接池在秒杀开始前就热起来
+     *   每张券每个节点只空跑一次,窗口里没有新的券时不会重复空跑
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval-millis:30000}")
+    public void preheatSeckillVouchers() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> upcoming = seckillVoucherService.query()
+                    .gt("begin_time", now)
+                    .le("begin_time", now.plusMinutes(seckillProperties.getPreheat().getAheadMinutes()))
+                    .list();
+            //已经开始的券不会再出现在窗口里,从已预热的集合里移除
+            Set<Long> upcomingIds = upcoming.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toSet());
+            warmedUp.retainAll(upcomingIds);
+            if (upcoming.isEmpty()) {
+                return;
+            }
+            boolean loaded = false;
+            for (SeckillVoucher voucher : upcoming) {
+                loaded |= preloadSeckillVoucher(voucher, now);
+            }
+            if (loaded) {
+                //库存key有变化,通知所有节点刷新秒杀券快照
+                seckillVoucherCache.notifyChanged();
+            }
+            //有本节点还没预热过的券才空跑
+            if (!warmedUp.containsAll(upcomingIds)) {
+                voucherOrderService.preheat(seckillProperties.getPreheat().getWarmUpRounds());
+                warmedUp.addAll(upcomingIds);
+            }
+        } catch (Exception e) {
+            log.error("秒杀预热异常", e);
+        }
+    }
+
+    /**
+     * 把一张秒杀券的库存和已购用户加载到Redis,集群里只有抢到预热标记的节点执行
+     * @return 是否加载过
+     */
+    private boolean preloadSeckillVoucher(SeckillVoucher voucher, LocalDateTime now) {
+        Long voucherId = voucher.getVoucherId();
+        //1.SET seckill:preheat:{id} 1 NX,标记一直保留到秒杀结束,每张券只预热一次
+        Duration ttl = Duration.between(now, voucher.getEndTime());
+        if (ttl.toMinutes() < 1) {
+            ttl = Duration.ofMinutes(1);
+        }
+        Boolean first = stringRedisTemplate.opsForValue().setIfAbsent(RedisConstants.SECKILL_PREHEAT_KEY + voucherId, "1", ttl);
+        if (!Boolean.TRUE.equals(first)) {
+            return false;
+        }
+        //2.新增秒杀券时已经写过库存的话就不再写,避免重复加库存
+        boolean stockExists = Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+        //3.已经下过单的用户,lua脚本靠seckill:order:{id}判断一人一单
+        List<String> buyers = voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>()
+                .select("user_id").eq("voucher_id", voucherId), String::valueOf);
+        int stock = voucher.getStock();
+        //4.库存和已购用户一个管道写完
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            if (!stockExists) {
+                conn.incrBy(RedisConstants.SECKILL_STOCK_KEY + voucherId, stock);
+            }
+            for (int i = 0; i < buyers.size(); i += PRELOAD_BUYERS_CHUNK) {
+                List<String> chunk = buyers.subList(i, Math.min(i + PRELOAD_BUYERS_CHUNK, buyers.size()));
+                conn.sAdd(RedisConstants.SECKILL_ORDER_KEY + voucherId, chunk.toArray(new String[0]));
+            }
+            return null;
+        });
+        log.info("预热秒杀券{}, 加载库存:{}, 已购用户:{}", voucherId, stockExists ? "已存在" : stock, buyers.size());
+        return true;
     }
 }
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 运维接口的拦截器,比如查看和重投死信消息,只有配置在 hmdp.seckill.admin-user-ids 里的用户可以访问
+ * 排在登录拦截器后面,这里只判断当前用户是不是管理员
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final SeckillProperties seckillProperties;
+
+    public AdminInterceptor(SeckillProperties seckillProperties) {
+        this.seckillProperties = seckillProperties;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        //不是管理员,返回403;没有配置管理员时谁都不能访问
+        if (!seckillProperties.getAdminUserIds().contains(user.getId())) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本地的布隆过滤器,元素是long类型的id
+ * 位数组m和哈希函数个数k根据预计元素数n和期望误判率p计算:
+ * m = -n*ln(p)/(ln2)^2, k = m/n*ln2
+ * k个位置用两个哈希值组合出来: h1 + i*h2
+ * 位数组可以和Redis的bitmap互相转换,第i位对应 SETBIT key i,即第i/8个字节从高位数的第i%8位
+ */
+public class BloomFilter {
+
+    private final long bitSize;
+
+    private final int hashCount;
+
+    private final AtomicLongArray words;
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        this.bitSize = Math.max(64, (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+        this.words = new AtomicLongArray((int) ((bitSize + 63) >>> 6));
+    }
+
+    /**
+     * id对应的k个位置,也就是Redis bitmap里的offset
+     */
+    public long[] offsets(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        long[] offsets = new long[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            offsets[i] = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+        }
+        return offsets;
+    }
+
+    public void put(long id) {
+        for (long offset : offsets(id)) {
+            set(offset);
+        }
+    }
+
+    /**
+     * 返回false表示一定不存在,返回true表示可能存在
+     */
+    public boolean mightContain(long id) {
+        for (long offset : offsets(id)) {
+            if ((words.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void set(long offset) {
+        int i = (int) (offset >>> 6);
+        long mask = 1L << offset;
+        long old;
+        do {
+            old = words.get(i);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!words.compareAndSet(i, old, old | mask));
+    }
+
+    /**
+     * 转成Redis bitmap的字节格式
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[(int) ((bitSize + 7) >>> 3)];
+        for (long offset = 0; offset < bitSize; offset++) {
+            if ((words.get((int) (offset >>> 6)) & (1L << offset)) != 0) {
+                bytes[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 把Redis bitmap里的位合并(OR)进来
+     */
+    public void merge(byte[] bytes) {
+        long limit = Math.min(bitSize, (long) bytes.length << 3);
+        for (long offset = 0; offset < limit; offset++) {
+            if ((bytes[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) != 0) {
+                set(offset);
+            }
+        }
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    public int hashCount() {
+        return hashCount;
+    }
+
+    /**
+     * 位数组占用的字节数
+     */
+    public long memoryBytes() {
+        return (long) words.length() << 3;
+    }
+
+    /**
+     * 根据当前置位的比例估计误判率: (置位数/m)^k
+     */
+    public double expectedFpp() {
+        long bitCount = 0;
+        for (int i = 0; i < words.length(); i++) {
+            bitCount += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) bitCount / bitSize, hashCount);
+    }
+
+    /**
+     * murmur3的64位混淆函数
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a87e5L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
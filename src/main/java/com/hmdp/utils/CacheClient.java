@@ -1,22 +1,49 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.hmdp.config.CacheProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Redis工具类
+ * 每类数据(同一个key前缀)先用registerPolicy声明缓存策略,再统一用query查询,一次查询只读一次Redis
+ * Redis里的值统一是RedisData的json,数据库里不存在的数据缓存为空字符串
+ * 查询方法在Redis前面有一层本地缓存(LRU,数量和时间都有上限),热点数据不用每次都走网络和反序列化
+ * 列表页用getMany批量查询,一次MGET,未命中的id一次批量查数据库,再用pipeline写回
+ * 数据更新后调用delete删除缓存,会通过Redis发布订阅通知所有节点清掉本地缓存
+ * 同一个JVM里同一个key同时未命中时只有一个线程加载,其他线程等它的结果;MUTEX和LOGICAL_EXPIRE策略再加上Redis互斥锁,
+ * 整个集群同一时间只查一次数据库
+ * 本地缓存里的对象是共享的,调用者不要修改查到的对象
  */
 @Slf4j
 @Component
@@ -24,24 +51,81 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final CacheProperties cacheProperties;
+
     //线程池
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(3);
 
+    /**
+     * 本地缓存里表示"数据库里没有"的空值,对应Redis里的空字符串
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    /**
+     * 表示Redis里没有这个key(或者是不认识的格式),需要加载
+     */
+    private static final Object MISS = new Object();
+
+    /**
+     * 拿不到互斥锁时,每次等待的毫秒数
+     */
+    private static final long LOCK_RETRY_MILLIS = 50;
+
+    /**
+     * 本地一级缓存 key -> 反序列化好的对象
+     */
+    private final LRUCache<String, Object> localCache;
+
+    /**
+     * 正在加载的key -> 加载结果,同一个key并发未命中时共用一个
+     */
+    private final Map<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * key前缀 -> 这类数据的缓存策略
+     */
+    private final Map<String, CachePolicy> policies = new ConcurrentHashMap<>();
+
+    /**
+     * key前缀 -> 这类数据的id布隆过滤器,没有注册的前缀不过滤
+     */
+    private final Map<String, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer,
+                       CacheProperties cacheProperties) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.cacheProperties = cacheProperties;
+        CacheProperties.Local local = cacheProperties.getLocal();
+        this.localCache = CacheUtil.newLRUCache(local.getMaxSize(), local.getTtlMillis());
+    }
+
+    @PostConstruct
+    private void init() {
+        //其他节点(包括自己)删除缓存后,清掉本地缓存
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                localCache.remove(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
     }
 
     /**
+     * 写入缓存,带真实的过期时间
      * @param key key
      * @param value 对象
      * @param time 时间值
      * @param unit 时间单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
+        //包装成RedisData,和逻辑过期的格式一样,只是没有逻辑过期时间
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
         //先序列化value
-        String jsonStr = JSONUtil.toJsonStr(value);
+        String jsonStr = JSONUtil.toJsonStr(redisData);
         stringRedisTemplate.opsForValue().set(key, jsonStr, time, unit);
+        localCache.remove(key);
     }
 
     /**
@@ -59,103 +143,341 @@ public class CacheClient {
         //先序列化value
         String jsonStr = JSONUtil.toJsonStr(redisData);
         stringRedisTemplate.opsForValue().set(key, jsonStr);
+        localCache.remove(key);
     }
 
     /**
-     * 解决缓存穿透
-     * 根据前缀+id查询redis里是否有数据,没有则查询数据库
+     * 声明一类key的缓存策略,query之前必须先注册
+     * @param keyPrefix 前缀
+     * @param policy 缓存策略
+     */
+    public void registerPolicy(String keyPrefix, CachePolicy policy) {
+        policies.put(keyPrefix, policy);
+    }
+
+    /**
+     * 给一类key注册id布隆过滤器,布隆过滤器判断不存在的id直接返回null,不查Redis和数据库
+     * @param keyPrefix 前缀
+     * @param bloomFilter 包含所有合法id的布隆过滤器
+     */
+    public void registerBloomFilter(String keyPrefix, BloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 删除缓存,并通知所有节点清掉本地缓存
+     * 数据库更新之后调用
+     * @param key key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.remove(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 按前缀注册的缓存策略查询
+     * 布隆过滤器 -> 本地缓存 -> Redis(一次GET) -> 按策略加载数据库
      * @param keyPrefix:前缀
      * @param id:根据id查询
      * @param type:对象
-     * @param daFallback:调用者查询数据库
-     * @param time 时间值
-     * @param unit 时间单位
+     * @param dbFallback:调用者查询数据库
+     * @return 数据库里也不存在返回null
      */
-    public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type,
-                                          Function<ID, R> daFallback, Long time, TimeUnit unit) {
+    public <R, ID> R query(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback) {
+        CachePolicy policy = policies.get(keyPrefix);
+        if (policy == null) {
+            throw new IllegalArgumentException("缓存前缀没有注册缓存策略: " + keyPrefix);
+        }
+        //1.布隆过滤器判断一定不存在,直接返回
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        //1.从redis查询商铺缓存
-        String Json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在,空字符串不会进入if里
-        if(StrUtil.isNotBlank(Json)) {
-            //3.存在,直接返回
-            R r = JSONUtil.toBean(Json, type);
-            return r;
+        //2.查本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
         }
+        //3.查Redis
+        Object cached = readRedis(key, id, type, dbFallback, policy);
+        if (cached != MISS) {
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
+        //4.未命中,按策略加载,本节点同一个key只有一个线程加载
+        return singleFlight(key, () -> {
+            //可能是上一个加载线程刚结束,它已经放进了本地缓存
+            Object loaded = getLocal(key);
+            if (loaded != null) {
+                return loaded == NULL_VALUE ? null : type.cast(loaded);
+            }
+            if (policy.getMode() == CachePolicy.Mode.PASS_THROUGH) {
+                return load(key, id, dbFallback, policy);
+            }
+            return loadWithMutex(key, id, type, dbFallback, policy);
+        });
+    }
 
-        //判断是否命中的是空值,上面的那个if已经判断过了,如果是空值,并且能走到这里,直接返回Null
-        if (Json != null) {
-            //返回错误信息
-            return null;
+    /**
+     * 合并同一个key的并发加载:第一个线程执行loader,加载期间到达的线程等待并共用它的结果(包括异常)
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return (R) existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
         }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException | Error e) {
+            //失败也要结束future,否则等待的线程会一直阻塞
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
 
-        //4.根据id查询数据库
-        R r = daFallback.apply(id);
-        //5.返回错误
-        if (r == null) {
-            //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            //返回错误信息
-            return null;
+    /**
+     * 批量查询,N个id只需要: 一次MGET + 一次批量查数据库 + 一次pipeline写回
+     * 前缀注册了LOGICAL_EXPIRE策略的话按逻辑过期写回,逻辑过期的值当作未命中一起重新加载;否则按time写真实过期时间
+     * @param keyPrefix:前缀
+     * @param ids:id列表
+     * @param type:对象
+     * @param batchLoader:调用者批量查询数据库,返回 id -> 对象,不存在的id不用放进去
+     * @param time 时间值
+     * @param unit 时间单位
+     * @return 和ids顺序一致的列表,不存在的位置为null
+     */
+    public <R, ID> List<R> getMany(String keyPrefix, List<ID> ids, Class<R> type,
+                                   Function<Collection<ID>, Map<ID, R>> batchLoader, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        boolean logicalExpire = policies.get(keyPrefix) != null
+                && policies.get(keyPrefix).getMode() == CachePolicy.Mode.LOGICAL_EXPIRE;
+        Map<ID, Object> found = new HashMap<>(ids.size() * 2);
+        //1.布隆过滤器和本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!mightExist(keyPrefix, id)) {
+                found.put(id, NULL_VALUE);
+                continue;
+            }
+            Object local = getLocal(keyPrefix + id);
+            if (local != null) {
+                found.put(id, local);
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        //2.一次MGET
+        Set<ID> missIds = new LinkedHashSet<>();
+        if (!remoteIds.isEmpty()) {
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            for (ID id : remoteIds) {
+                keys.add(keyPrefix + id);
+            }
+            List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                Object cached = parse(values == null ? null : values.get(i), type, logicalExpire);
+                if (cached == MISS) {
+                    missIds.add(id);
+                } else {
+                    putLocal(keys.get(i), cached);
+                    found.put(id, cached);
+                }
+            }
         }
-        //存在,写入redis
-        this.set(key, r, time, unit);
+        //3.未命中的一次批量查数据库,再用pipeline写回
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = batchLoader.apply(missIds);
+            Map<String, String> writes = new HashMap<>(missIds.size() * 2);
+            for (ID id : missIds) {
+                R r = loaded == null ? null : loaded.get(id);
+                found.put(id, r == null ? NULL_VALUE : r);
+                writes.put(keyPrefix + id, r == null ? "" : toRedisValue(r, logicalExpire, time, unit));
+            }
+            long ttlSeconds = unit.toSeconds(time);
+            long nullTtlSeconds = TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Map.Entry<String, String> entry : writes.entrySet()) {
+                    if (entry.getValue().isEmpty()) {
+                        //将空值写入redis
+                        conn.setEx(entry.getKey(), nullTtlSeconds, entry.getValue());
+                    } else if (logicalExpire) {
+                        conn.set(entry.getKey(), entry.getValue());
+                    } else {
+                        conn.setEx(entry.getKey(), ttlSeconds, entry.getValue());
+                    }
+                }
+                return null;
+            });
+            for (ID id : missIds) {
+                putLocal(keyPrefix + id, found.get(id));
+            }
+        }
+        //4.按调用者的顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            Object value = found.get(id);
+            result.add(value == null || value == NULL_VALUE ? null : type.cast(value));
+        }
+        return result;
+    }
 
-        //返回
-        return r;
+    /**
+     * 解析getMany里MGET到的值
+     * @return 数据对象;NULL_VALUE表示缓存的是空值;MISS表示不存在、格式不认识或者已经逻辑过期
+     */
+    private <R> Object parse(String json, Class<R> type, boolean logicalExpire) {
+        if (json == null) {
+            return MISS;
+        }
+        if (json.isEmpty()) {
+            return NULL_VALUE;
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        if (!(redisData.getData() instanceof JSONObject)) {
+            return MISS;
+        }
+        LocalDateTime expireTime = redisData.getExpireTime();
+        if (logicalExpire && expireTime != null && !expireTime.isAfter(LocalDateTime.now())) {
+            return MISS;
+        }
+        return ((JSONObject) redisData.getData()).toBean(type);
     }
 
     /**
-     * 使用逻辑过期来解决缓存击穿
+     * 序列化成RedisData的json,和set/setWithLogicalExpire写的格式一样
      */
-    public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
-                                            Long time, TimeUnit unit) {
-        String key = keyPrefix + id;
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.如果为空,直接返回
-        if(StrUtil.isBlank(shopJson)) {
-            return null;
+    private static String toRedisValue(Object value, boolean logicalExpire, Long time, TimeUnit unit) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        if (logicalExpire) {
+            redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         }
+        return JSONUtil.toJsonStr(redisData);
+    }
 
-        //命中,需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        //这里是JSONObject是因为,上面为json的反序列化得到的
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
+    /**
+     * 读Redis并反序列化
+     * @return 数据对象;NULL_VALUE表示缓存的是空值;MISS表示需要加载
+     */
+    private <R, ID> Object readRedis(String key, ID id, Class<R> type, Function<ID, R> dbFallback, CachePolicy policy) {
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json == null) {
+            return MISS;
+        }
+        //空字符串是缓存的空值,防止缓存穿透
+        if (json.isEmpty()) {
+            putLocal(key, NULL_VALUE);
+            return NULL_VALUE;
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        //这里是JSONObject是因为,上面为json的反序列化得到的;不是的话是旧格式的值,重新加载覆盖掉
+        if (!(redisData.getData() instanceof JSONObject)) {
+            return MISS;
+        }
+        R r = ((JSONObject) redisData.getData()).toBean(type);
         LocalDateTime expireTime = redisData.getExpireTime();
-        //判断逻辑是否过期
-        if(expireTime == null){
+        if (policy.getMode() == CachePolicy.Mode.LOGICAL_EXPIRE && expireTime != null
+                && !expireTime.isAfter(LocalDateTime.now())) {
+            //逻辑过期了,异步重建,先返回旧数据;不放进本地缓存,下次还去Redis看有没有重建好
+            rebuildAsync(key, id, dbFallback, policy);
+            return r;
+        }
+        putLocal(key, r);
+        return r;
+    }
+
+    /**
+     * 查数据库并写入缓存,不存在的写入空值
+     */
+    private <R, ID> R load(String key, ID id, Function<ID, R> dbFallback, CachePolicy policy) {
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            //将空值写入redis
+            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(key, NULL_VALUE);
             return null;
         }
-        if(expireTime.isAfter(LocalDateTime.now())) {
-            //未过期,直接返回店铺信息
-            return r;
+        if (policy.getMode() == CachePolicy.Mode.LOGICAL_EXPIRE) {
+            this.setWithLogicalExpire(key, r, policy.getTime(), policy.getUnit());
+        } else {
+            this.set(key, r, policy.getTime(), policy.getUnit());
         }
-        //已过期,需要重建
-        //获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //判断锁是否获取成功
-        if(isLock) {
-            //成功,开启独立线程,实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        putLocal(key, r);
+        return r;
+    }
+
+    /**
+     * 互斥锁解决缓存击穿:只有拿到锁的线程查数据库,其他线程等待后重新读Redis
+     * 等待超过锁的有效期还没读到,直接查数据库返回,不写缓存
+     */
+    private <R, ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback, CachePolicy policy) {
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RedisConstants.LOCK_SHOP_TTL);
+        while (true) {
+            if (tryLock(lockKey)) {
                 try {
-                    //重建缓存,这里只是为了测试设置为20秒,实际开发建议根据业务需求而设置时间
-                    //先查数据库
-                    R r1 = dbFallback.apply(id);
-                    //再写入redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
+                    //拿到锁之后再查一次,可能别的线程已经重建好了
+                    Object cached = readRedis(key, id, type, dbFallback, policy);
+                    if (cached != MISS) {
+                        return cached == NULL_VALUE ? null : type.cast(cached);
+                    }
+                    return load(key, id, dbFallback, policy);
+                } finally {
+                    //释放互斥锁
                     unLock(lockKey);
                 }
-            });
+            }
+            if (System.currentTimeMillis() > deadline) {
+                log.warn("等待缓存重建超时,直接查询数据库, key:{}", key);
+                return dbFallback.apply(id);
+            }
+            //失败,则休眠并重试
+            try {
+                Thread.sleep(LOCK_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            Object cached = readRedis(key, id, type, dbFallback, policy);
+            if (cached != MISS) {
+                return cached == NULL_VALUE ? null : type.cast(cached);
+            }
         }
-        //返回过期的店铺信息
-        return r;
+    }
+
+    /**
+     * 逻辑过期后,拿到互斥锁的线程开启独立线程重建缓存
+     */
+    private <R, ID> void rebuildAsync(String key, ID id, Function<ID, R> dbFallback, CachePolicy policy) {
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        if (!tryLock(lockKey)) {
+            return;
+        }
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            try {
+                //先查数据库,再写入redis
+                load(key, id, dbFallback, policy);
+            } catch (Exception e) {
+                log.error("重建缓存失败, key:{}", key, e);
+            } finally {
+                //释放锁
+                unLock(lockKey);
+            }
+        });
     }
 
     /**
@@ -164,7 +486,7 @@ public class CacheClient {
      */
     private boolean tryLock(String key) {
         //相当于redis的 setnx 设置有效期为10秒钟,根据业务而定
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
         //如果直接返回,会自动拆箱,有可能空指针异常
         return BooleanUtil.isTrue(flag);
     }
@@ -175,5 +497,22 @@ public class CacheClient {
         stringRedisTemplate.delete(key);
     }
 
+    private boolean mightExist(String keyPrefix, Object id) {
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || !(id instanceof Number) || bloomFilter.mightContain(((Number) id).longValue());
+    }
 
+    private Object getLocal(String key) {
+        if (!cacheProperties.getLocal().isEnabled()) {
+            return null;
+        }
+        //get时不刷新过期时间,保证本地缓存最多比Redis旧ttlMillis
+        return localCache.get(key, false);
+    }
+
+    private void putLocal(String key, Object value) {
+        if (cacheProperties.getLocal().isEnabled()) {
+            localCache.put(key, value);
+        }
+    }
 }
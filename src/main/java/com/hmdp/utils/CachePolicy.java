@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一类缓存key(同一个前缀)的读写策略,在CacheClient.registerPolicy里声明
+ * 三种策略的Redis值格式一样,都是RedisData的json,数据库里不存在的数据缓存为空字符串
+ */
+@Getter
+public class CachePolicy {
+
+    public enum Mode {
+        /**
+         * 解决缓存穿透:未命中直接查数据库,不存在的数据缓存空值,数据有真实的过期时间
+         */
+        PASS_THROUGH,
+        /**
+         * 逻辑过期:数据在Redis里不过期,逻辑过期后返回旧数据,由一个线程异步重建;未命中时按MUTEX加载
+         */
+        LOGICAL_EXPIRE,
+        /**
+         * 互斥锁:未命中时只有拿到锁的线程查数据库重建,其他线程等待后重新读缓存,数据有真实的过期时间
+         */
+        MUTEX
+    }
+
+    private final Mode mode;
+
+    private final long time;
+
+    private final TimeUnit unit;
+
+    private CachePolicy(Mode mode, long time, TimeUnit unit) {
+        this.mode = mode;
+        this.time = time;
+        this.unit = unit;
+    }
+
+    public static CachePolicy passThrough(long time, TimeUnit unit) {
+        return new CachePolicy(Mode.PASS_THROUGH, time, unit);
+    }
+
+    public static CachePolicy logicalExpire(long time, TimeUnit unit) {
+        return new CachePolicy(Mode.LOGICAL_EXPIRE, time, unit);
+    }
+
+    public static CachePolicy mutex(long time, TimeUnit unit) {
+        return new CachePolicy(Mode.MUTEX, time, unit);
+    }
+}
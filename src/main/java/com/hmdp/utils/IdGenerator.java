@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 全局唯一id生成器
+ * RedisIdWorker:Redis自增,每天一个key,可以统计每天的订单量
+ * SnowflakeIdGenerator:完全在本地生成,只有启动时租workerId需要Redis
+ * 通过 hmdp.id.generator 选择,见IdGeneratorConfig
+ */
+public interface IdGenerator {
+
+    /**
+     * 生成一个id
+     * @param keyPrefix 业务前缀,比如order
+     */
+    long nextId(String keyPrefix);
+
+    /**
+     * 一次生成n个id
+     */
+    default long[] nextIds(String keyPrefix, int n) {
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = nextId(keyPrefix);
+        }
+        return ids;
+    }
+
+    /**
+     * 异步生成id,本地生成的实现直接返回已完成的future
+     */
+    default CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        return CompletableFuture.completedFuture(nextId(keyPrefix));
+    }
+}
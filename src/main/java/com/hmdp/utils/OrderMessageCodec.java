@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 订单消息的编解码
+ * lua脚本往stream里写的订单消息只有一个字段 o,第一个字符是版本:
+ * 版本1,一个订单: o = 1|订单id|用户id|优惠券id,比如 o = 1|123|1010|7
+ * 版本2,同一个用户的多个订单(批量抢券): o = 2|用户id|订单id|优惠券id|订单id|优惠券id...
+ * 手写解析,不用反射,除了VoucherOrder本身不创建中间对象
+ * 兼容老格式(userId、voucherId、id三个字段),升级时stream里还没处理完的老消息也能解析
+ */
+public final class OrderMessageCodec {
+
+    /**
+     * 打包后的字段名
+     */
+    public static final String FIELD = "o";
+
+    /**
+     * 当前的格式版本,改格式时版本号加1,解析时按版本号分别处理
+     */
+    public static final char VERSION = '1';
+
+    /**
+     * 一条消息打包多个订单的版本
+     */
+    public static final char VERSION_BATCH = '2';
+
+    private static final char SEPARATOR = '|';
+
+    private OrderMessageCodec() {
+    }
+
+    /**
+     * 编码,和seckill.lua里拼接的格式一致
+     */
+    public static String encode(long orderId, long userId, long voucherId) {
+        return new StringBuilder(48).append(VERSION)
+                .append(SEPARATOR).append(orderId)
+                .append(SEPARATOR).append(userId)
+                .append(SEPARATOR).append(voucherId)
+                .toString();
+    }
+
+    /**
+     * 把stream消息的字段解析成订单
+     */
+    public static VoucherOrder decode(Map<Object, Object> value) {
+        Object packed = value.get(FIELD);
+        if (packed == null) {
+            //老格式
+            Object id = value.get("id");
+            Object userId = value.get("userId");
+            Object voucherId = value.get("voucherId");
+            if (id == null || userId == null || voucherId == null) {
+                throw new IllegalArgumentException("不支持的订单消息格式: " + value);
+            }
+            VoucherOrder order = new VoucherOrder();
+            order.setId(Long.valueOf(id.toString()));
+            order.setUserId(Long.valueOf(userId.toString()));
+            order.setVoucherId(Long.valueOf(voucherId.toString()));
+            return order;
+        }
+        return decode(packed.toString());
+    }
+
+    /**
+     * 把stream消息的字段解析成订单,兼容所有版本,一条消息可能有多个订单
+     */
+    public static List<VoucherOrder> decodeAll(Map<Object, Object> value) {
+        Object packed = value.get(FIELD);
+        if (packed == null || packed.toString().isEmpty() || packed.toString().charAt(0) != VERSION_BATCH) {
+            return Collections.singletonList(decode(value));
+        }
+        return decodeBatch(packed.toString());
+    }
+
+    /**
+     * 解析批量的字段 2|用户id|订单id|优惠券id|订单id|优惠券id...
+     */
+    private static List<VoucherOrder> decodeBatch(String packed) {
+        if (packed.length() < 2 || packed.charAt(1) != SEPARATOR) {
+            throw new IllegalArgumentException("不支持的订单消息格式: " + packed);
+        }
+        int start = 2;
+        int end = packed.indexOf(SEPARATOR, start);
+        long userId = parseLong(packed, start, end);
+        List<VoucherOrder> orders = new ArrayList<>(4);
+        while (end > 0) {
+            start = end + 1;
+            end = packed.indexOf(SEPARATOR, start);
+            long orderId = parseLong(packed, start, end);
+            start = end + 1;
+            end = packed.indexOf(SEPARATOR, start);
+            long voucherId = parseLong(packed, start, end < 0 ? packed.length() : end);
+            VoucherOrder order = new VoucherOrder();
+            order.setId(orderId);
+            order.setUserId(userId);
+            order.setVoucherId(voucherId);
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    /**
+     * 解析打包的字段 版本|订单id|用户id|优惠券id
+     */
+    public static VoucherOrder decode(String packed) {
+        if (packed.length() < 2 || packed.charAt(0) != VERSION || packed.charAt(1) != SEPARATOR) {
+            throw new IllegalArgumentException("不支持的订单消息格式: " + packed);
+        }
+        int start = 2;
+        int end = packed.indexOf(SEPARATOR, start);
+        long orderId = parseLong(packed, start, end);
+        start = end + 1;
+        end = packed.indexOf(SEPARATOR, start);
+        long userId = parseLong(packed, start, end);
+        long voucherId = parseLong(packed, end + 1, packed.length());
+        VoucherOrder order = new VoucherOrder();
+        order.setId(orderId);
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        return order;
+    }
+
+    /**
+     * 解析[from, to)之间的非负整数,不用substring
+     */
+    private static long parseLong(String s, int from, int to) {
+        if (from < 0 || to <= from) {
+            throw new IllegalArgumentException("订单消息格式错误: " + s);
+        }
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("订单消息格式错误: " + s);
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+}
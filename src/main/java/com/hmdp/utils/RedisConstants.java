@@ -10,11 +10,30 @@ public class RedisConstants {
     //为了测试,不用重复登录,设置时间长些
     public static final Long CACHE_SHOP_TTL = 3600L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:channel:invalidate";
+    public static final String CACHE_SHOP_BLOOM_KEY = "bloom:shop";
+    public static final String CACHE_SHOP_BLOOM_CHANNEL = "bloom:channel:shop";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 86400L;
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders:";
+    public static final String SECKILL_ORDER_LEGACY_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_PREHEAT_KEY = "seckill:preheat:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:channel:sold-out";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:channel:restock";
+    public static final String SECKILL_VOUCHER_CHANGED_CHANNEL = "seckill:channel:voucher-changed";
+    public static final String ID_WORKER_KEY = "id:worker:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,45 +1,236 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * id生成器
  * 使用的是Redis自增ID策略,每天一个key,方便统计订单量
  * 结构是: 符号位(最高位)+时间戳(31位)+计数器(32位)
+ * 号段模式(hmdp.id.segment-size > 0):每个JVM用INCRBY一次租一段序列号到本地,用原子计数器发号,
+ * 用到一定比例时异步预取下一段,不用每个id都访问一次Redis;id的结构不变
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     //序列号的位数
     private static final int COUNT_BITS = 32;
+    //key里的日期格式,DateTimeFormatter是线程安全的,不用每次都创建
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final long SECONDS_PER_DAY = 86400L;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    /**
+     * 号段大小,一次从Redis租多少个序列号,小于等于0表示不用号段,每个id都INCR一次
+     */
+    @Value("${hmdp.id.segment-size:0}")
+    private int segmentSize;
+
+    /**
+     * 当前号段剩下这个百分比时,异步预取下一段
+     */
+    @Value("${hmdp.id.prefetch-percent:20}")
+    private int prefetchPercent;
+
+    /**
+     * 业务前缀 -> 号段
+     */
+    private final Map<String, SegmentBuffer> segments = new ConcurrentHashMap<>();
+
+    private final ExecutorService segmentPrefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      *前缀用来区分不同业务的,而且redis是k,v的形式
      */
+    @Override
     public long nextId(String keyPrefix) {
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         //2.生成序列化
-        //2.1获取当前日期,精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //value是自增长的
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count;
+        if (segmentSize > 0) {
+            //号段模式,从本地号段里取,按天换号段
+            count = nextSequence(keyPrefix, nowSecond / SECONDS_PER_DAY);
+        } else {
+            //2.1获取当前日期,精确到天
+            String date = now.format(DATE_FORMATTER);
+            //value是自增长的
+            count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        }
         //3.拼接并返回,由于时间戳是在高位的,要移动32位,空出32位给序列号(count)
         return timestamp << COUNT_BITS | count;
     }
 
+    /**
+     * 一次生成n个id,只INCRBY一次,批量抢券时用
+     */
+    @Override
+    public long[] nextIds(String keyPrefix, int n) {
+        long[] ids = new long[n];
+        if (segmentSize > 0) {
+            //号段模式下本地发号已经很快了,逐个取
+            for (int i = 0; i < n; i++) {
+                ids[i] = nextId(keyPrefix);
+            }
+            return ids;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String date = now.format(DATE_FORMATTER);
+        //INCRBY返回的是加完之后的值,这n个序列号是 last-n+1 ... last
+        long last = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, n);
+        for (int i = 0; i < n; i++) {
+            ids[i] = timestamp << COUNT_BITS | (last - n + 1 + i);
+        }
+        return ids;
+    }
+
+    /**
+     * nextId的异步版本,INCR走Lettuce的异步连接,不占用调用线程
+     * 注意回调是在Lettuce的IO线程上执行的,后续不要在回调里做阻塞操作
+     */
+    @Override
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        if (segmentSize > 0) {
+            //号段模式下直接在本地发号,只有号段用完且预取没跟上时才会同步访问一次Redis
+            return CompletableFuture.completedFuture(nextId(keyPrefix));
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String date = now.format(DATE_FORMATTER);
+        return reactiveStringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date)
+                .map(count -> timestamp << COUNT_BITS | count)
+                .toFuture();
+    }
+
+    /**
+     * 一段序列号 [cursor, end],属于哪一天的key
+     */
+    private static class Segment {
+        private final long day;
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(long day, long start, long end, long prefetchAt) {
+            this.day = day;
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段:正在用的和预取好的下一段
+     */
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+    }
+
+    /**
+     * 从本地号段取一个序列号,无锁;号段用完或者跨天了才加锁换号段
+     */
+    private long nextSequence(String keyPrefix, long day) {
+        SegmentBuffer buffer = segments.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.day == day) {
+                long seq = segment.cursor.getAndIncrement();
+                if (seq <= segment.end) {
+                    //getAndIncrement保证只有一个线程取到prefetchAt,只会触发一次预取
+                    if (seq == segment.prefetchAt) {
+                        prefetch(buffer, keyPrefix, day);
+                    }
+                    return seq;
+                }
+            }
+            switchSegment(buffer, keyPrefix, day, segment);
+        }
+    }
+
+    /**
+     * 换号段:优先用预取好的同一天的号段,没有就同步租一段
+     * 多个线程同时发现号段用完时,只有第一个线程换,其他线程重新取
+     */
+    private void switchSegment(SegmentBuffer buffer, String keyPrefix, long day, Segment exhausted) {
+        synchronized (buffer) {
+            if (buffer.current != exhausted) {
+                return;
+            }
+            Segment next = buffer.next;
+            buffer.next = null;
+            if (next == null || next.day != day) {
+                //没有预取好的,或者预取的是前一天的(跨天了),同步租一段
+                next = leaseSegment(keyPrefix, day);
+            }
+            buffer.current = next;
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, String keyPrefix, long day) {
+        if (!buffer.prefetching.compareAndSet(false, true)) {
+            return;
+        }
+        segmentPrefetchExecutor.execute(() -> {
+            try {
+                buffer.next = leaseSegment(keyPrefix, day);
+            } catch (Exception e) {
+                //预取失败不影响发号,号段用完时会同步租
+                log.error("预取id号段失败, keyPrefix:{}", keyPrefix, e);
+            } finally {
+                buffer.prefetching.set(false);
+            }
+        });
+    }
+
+    /**
+     * INCRBY icr:{keyPrefix}:{yyyy:MM:dd} segmentSize,租到的序列号是 last-segmentSize+1 ... last
+     */
+    private Segment leaseSegment(String keyPrefix, long day) {
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        long last = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentSize);
+        long start = last - segmentSize + 1;
+        long prefetchAt = Math.max(start, last - (long) segmentSize * prefetchPercent / 100);
+        return new Segment(day, start, last, prefetchAt);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        segmentPrefetchExecutor.shutdownNow();
+    }
+
 
 
 /*    public static void main(String[] args) {
@@ -4,7 +4,7 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -12,7 +12,7 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 //拦截一切请求 这个拦截器只是为了刷新token,如果token为空就放行
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     //这里不能用注解来注入,因为类不是交给IOC容器的
     private StringRedisTemplate stringRedisTemplate;
@@ -66,4 +66,14 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         //移除用户
         UserHolder.removeUser();
     }
+
+    /**
+     * 异步请求(比如返回CompletableFuture的接口)在这里就把请求线程还给Tomcat了,不会走afterCompletion,
+     * 所以要在这里移除用户,否则这个线程处理下一个请求时会拿到上一个用户
+     * 异步结果回来后会重新分派一次请求,那时会再走一遍preHandle和afterCompletion
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
@@ -0,0 +1,198 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 订单stream的归档和裁剪
+ * lua脚本XADD时不带MAXLEN,已经确认的消息也不会自动删除,大促之后stream会越来越大
+ * 这里定时把所有消费者组都已经确认的消息写到本地的归档文件里,再用XTRIM MINID删掉,
+ * 还没投递或者还在pending-list里的消息永远不会被删除
+ */
+@Slf4j
+@Component
+public class SeckillOrderArchiver {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.archive.interval-millis:60000}")
+    public void archive() {
+        SeckillProperties.Archive config = seckillProperties.getArchive();
+        if (!config.isEnabled()) {
+            return;
+        }
+        int partitions = Math.max(1, seckillProperties.getOrder().getPartitions());
+        for (int p = 0; p < partitions; p++) {
+            String queueName = RedisConstants.SECKILL_ORDER_STREAM_KEY + "{" + p + "}";
+            //同一个分区同一时间只让一个节点归档,否则每个节点的本地文件里都会有一份
+            RLock lock = redissonClient.getLock("lock:archive:" + queueName);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                archivePartition(queueName, config);
+            } catch (Exception e) {
+                log.error("归档订单stream异常, stream:{}", queueName, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void archivePartition(String queueName, SeckillProperties.Archive config) throws IOException {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(queueName))) {
+            return;
+        }
+        while (true) {
+            //1.计算可以裁剪到哪里
+            String[] bound = safeBound(queueName);
+            if (bound == null) {
+                return;
+            }
+            //2.读出一批已经确认的消息
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().range(queueName,
+                    Range.leftUnbounded(Range.Bound.inclusive(bound[0])), RedisZSetCommands.Limit.limit().count(config.getBatchSize()));
+            if (list == null) {
+                return;
+            }
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>(list);
+            if (bound[1] != null) {
+                //bound[1]是最小的pending消息,它和它后面的消息都不能归档
+                records.removeIf(record -> compareIds(record.getId().getValue(), bound[1]) >= 0);
+            }
+            if (records.isEmpty()) {
+                return;
+            }
+            //3.先写归档文件,写成功了再裁剪;裁剪失败的话下次会重复归档这一批,归档文件是至少一次的
+            writeArchive(queueName, records, config.getDir());
+            String lastId = records.get(records.size() - 1).getId().getValue();
+            trim(queueName, nextId(lastId));
+            log.debug("归档了{}条订单消息, stream:{}, 截止:{}", records.size(), queueName, lastId);
+            if (list.size() < config.getBatchSize() || records.size() < list.size()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 根据XINFO GROUPS和XPENDING计算安全的归档范围
+     * @return [0]:所有消费者组都已经投递过的最大id(含), [1]:所有消费者组里最小的pending消息id,没有pending为null;
+     *         还有消费者组一条都没投递过的话返回null,不能归档
+     */
+    private String[] safeBound(String queueName) {
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(queueName);
+        if (groups.isEmpty()) {
+            //没有消费者组的话,不知道消息有没有被处理,不归档
+            return null;
+        }
+        String lastDelivered = null;
+        String minPending = null;
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            String delivered = group.lastDeliveredId();
+            if (delivered == null || "0-0".equals(delivered)) {
+                return null;
+            }
+            if (lastDelivered == null || compareIds(delivered, lastDelivered) < 0) {
+                lastDelivered = delivered;
+            }
+            if (group.pendingCount() > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(queueName, group.groupName());
+                String min = summary.minMessageId();
+                if (min != null && (minPending == null || compareIds(min, minPending) < 0)) {
+                    minPending = min;
+                }
+            }
+        }
+        return new String[]{lastDelivered, minPending};
+    }
+
+    /**
+     * 追加写到归档文件 {dir}/stream.orders-{p}-yyyyMMdd.gz,每行: 消息id 字段1=值1 字段2=值2 ...
+     * 每次追加一个新的gzip成员,gzip格式允许多个成员直接拼接,zcat可以直接读取整个文件
+     */
+    private void writeArchive(String queueName, List<MapRecord<String, Object, Object>> records, String dir) throws IOException {
+        Path path = Paths.get(dir);
+        Files.createDirectories(path);
+        String fileName = queueName.replace(":", "-").replace("{", "").replace("}", "")
+                + "-" + LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE) + ".gz";
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(path.resolve(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)), StandardCharsets.UTF_8)) {
+            StringBuilder sb = new StringBuilder(64);
+            for (MapRecord<String, Object, Object> record : records) {
+                sb.setLength(0);
+                sb.append(record.getId().getValue());
+                for (Map.Entry<Object, Object> entry : record.getValue().entrySet()) {
+                    sb.append('\t').append(entry.getKey()).append('=').append(entry.getValue());
+                }
+                sb.append('\n');
+                writer.write(sb.toString());
+            }
+        }
+    }
+
+    /**
+     * XTRIM key MINID id,删除id比它小的消息;spring-data-redis没有封装MINID,直接执行命令,需要Redis 6.2+
+     */
+    private void trim(String queueName, String minId) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                queueName.getBytes(StandardCharsets.UTF_8),
+                "MINID".getBytes(StandardCharsets.UTF_8),
+                minId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 比较两个stream消息id(毫秒时间戳-序号)
+     */
+    private static int compareIds(String a, String b) {
+        int ia = a.indexOf('-');
+        int ib = b.indexOf('-');
+        int c = Long.compare(Long.parseLong(a.substring(0, ia)), Long.parseLong(b.substring(0, ib)));
+        if (c != 0) {
+            return c;
+        }
+        return Long.compare(Long.parseLong(a.substring(ia + 1)), Long.parseLong(b.substring(ib + 1)));
+    }
+
+    /**
+     * 紧挨着的下一个消息id,用作MINID把id本身也删掉
+     */
+    private static String nextId(String id) {
+        int i = id.indexOf('-');
+        return id.substring(0, i) + "-" + (Long.parseLong(id.substring(i + 1)) + 1);
+    }
+}
@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 订单消息的死信队列 stream.orders.dlq
+ * 一条消息处理失败的次数(XPENDING里的投递次数)达到maxDeliveries、并且从写入stream开始已经重试了deadLetterAfterMillis以上,
+ * 才带上失败原因转到死信队列并确认掉;只看次数的话数据库短暂不可用几秒就会把正常订单转进死信队列
+ * 不会因为一条坏消息一直重试,把它后面的订单全部卡住
+ * 死信消息里保留原来的字段,另外加上 _stream(来源stream)、_id(原消息id)、_reason(失败原因)、_deliveries(投递次数)
+ */
+@Slf4j
+@Component
+public class SeckillOrderDeadLetter {
+
+    private static final String SOURCE_STREAM = "_stream";
+    private static final String SOURCE_ID = "_id";
+    private static final String REASON = "_reason";
+    private static final String DELIVERIES = "_deliveries";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    /**
+     * 消息处理失败后调用,投递次数达到上限就转到死信队列并确认
+     * @return 是否已经转到死信队列
+     */
+    public boolean moveIfExhausted(String queueName, String consumerName, MapRecord<String, Object, Object> record, Exception cause) {
+        try {
+            //1.XPENDING stream.orders:{p} g1 id id 1 consumerName,拿到这条消息的投递次数
+            String id = record.getId().getValue();
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(queueName,
+                    Consumer.from("g1", consumerName), Range.closed(id, id), 1L);
+            if (pending.isEmpty()) {
+                return false;
+            }
+            long deliveries = pending.get(0).getTotalDeliveryCount();
+            if (deliveries < seckillProperties.getOrder().getMaxDeliveries()) {
+                return false;
+            }
+            //消息id的前半部分是写入stream的毫秒时间戳
+            long age = System.currentTimeMillis() - record.getId().getTimestamp();
+            if (age < seckillProperties.getOrder().getDeadLetterAfterMillis()) {
+                return false;
+            }
+            //2.带上失败原因写到死信队列,再确认原消息
+            Map<String, String> fields = new LinkedHashMap<>();
+            record.getValue().forEach((k, v) -> fields.put(k.toString(), v.toString()));
+            fields.put(SOURCE_STREAM, queueName);
+            fields.put(SOURCE_ID, id);
+            fields.put(REASON, ExceptionUtil.getRootCauseMessage(cause));
+            fields.put(DELIVERIES, String.valueOf(deliveries));
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                    .in(RedisConstants.SECKILL_ORDER_DLQ_KEY).ofMap(fields));
+            stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+            log.error("订单消息处理{}次都失败了,转入死信队列, stream:{}, id:{}", deliveries, queueName, id);
+            return true;
+        } catch (Exception e) {
+            log.error("转入死信队列失败", e);
+            return false;
+        }
+    }
+
+    /**
+     * 查询最新的count条死信消息
+     */
+    public List<Map<String, Object>> list(long count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .reverseRange(RedisConstants.SECKILL_ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count((int) count));
+        List<Map<String, Object>> result = new ArrayList<>();
+        if (records == null) {
+            return result;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, Object> item = new HashMap<>(4);
+            item.put("id", record.getId().getValue());
+            item.put("fields", record.getValue());
+            result.add(item);
+        }
+        return result;
+    }
+
+    /**
+     * 重新投递一条死信消息:去掉死信字段后XADD回原来的stream,再从死信队列删除
+     * 没有_stream字段(手工写入的、老格式的死信消息)时,按订单的优惠券id算出分区stream
+     * @return 重投失败的原因,成功返回null
+     */
+    public String replay(String id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(RedisConstants.SECKILL_ORDER_DLQ_KEY, Range.closed(id, id));
+        if (records == null || records.isEmpty()) {
+            return "死信消息不存在~";
+        }
+        MapRecord<String, Object, Object> record = records.get(0);
+        Map<String, String> fields = new LinkedHashMap<>();
+        record.getValue().forEach((k, v) -> fields.put(k.toString(), v.toString()));
+        String source = fields.remove(SOURCE_STREAM);
+        fields.remove(SOURCE_ID);
+        fields.remove(REASON);
+        fields.remove(DELIVERIES);
+        if (StrUtil.isBlank(source)) {
+            source = partitionStream(fields);
+            if (source == null) {
+                return "死信消息没有来源stream,也解析不出订单,无法重投";
+            }
+        }
+        RecordId newId = stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(source).ofMap(fields));
+        stringRedisTemplate.opsForStream().delete(RedisConstants.SECKILL_ORDER_DLQ_KEY, record.getId());
+        log.info("重新投递死信消息, 死信id:{}, stream:{}, 新id:{}", id, source, newId);
+        return null;
+    }
+
+    /**
+     * 按订单的优惠券id选择分区stream,和lua脚本一样是 voucherId % 分区数;一条消息里的订单总在同一个分区
+     * @return 解析不出订单返回null
+     */
+    private String partitionStream(Map<String, String> fields) {
+        List<VoucherOrder> orders;
+        try {
+            orders = OrderMessageCodec.decodeAll(new HashMap<>(fields));
+        } catch (Exception e) {
+            return null;
+        }
+        int partitions = Math.max(1, seckillProperties.getOrder().getPartitions());
+        return RedisConstants.SECKILL_ORDER_STREAM_KEY + "{" + orders.get(0).getVoucherId() % partitions + "}";
+    }
+}
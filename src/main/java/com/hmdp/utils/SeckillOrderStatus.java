@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 秒杀订单的处理状态,保存在Redis的hash里 seckill:order:status:{orderId}
+ * 字段: status(queued/persisted/rejected)、reason(被拒绝的原因)、userId、voucherId
+ * queued由lua脚本下单时写入,persisted和rejected由订单消费者写入,客户端轮询订单状态不用查数据库
+ */
+@Component
+public class SeckillOrderStatus {
+
+    public static final String QUEUED = "queued";
+    public static final String PERSISTED = "persisted";
+    public static final String REJECTED = "rejected";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 一批订单落库成功,管道一次写完
+     */
+    public void markPersisted(Collection<VoucherOrder> orders) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                write(conn, order, PERSISTED, null);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 订单被拒绝,比如数据库库存不足
+     */
+    public void markRejected(VoucherOrder order, String reason) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            write((StringRedisConnection) connection, order, REJECTED, reason);
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态,不存在(没下过单或者已经过期)返回空map
+     */
+    public Map<String, String> get(Long orderId) {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId);
+        Map<String, String> status = new HashMap<>(entries.size() * 2);
+        entries.forEach((k, v) -> status.put(k.toString(), v.toString()));
+        return status;
+    }
+
+    /**
+     * 消息可能在很久之后才被处理,hash已经过期的话HSET会建一个没有过期时间的key,所以每次都重新设置过期时间
+     */
+    private void write(StringRedisConnection conn, VoucherOrder order, String status, String reason) {
+        String key = RedisConstants.SECKILL_ORDER_STATUS_KEY + order.getId();
+        Map<String, String> fields = new HashMap<>(8);
+        fields.put("status", status);
+        fields.put("userId", String.valueOf(order.getUserId()));
+        fields.put("voucherId", String.valueOf(order.getVoucherId()));
+        if (reason != null) {
+            fields.put("reason", reason);
+        }
+        conn.hMSet(key, fields);
+        conn.expire(key, RedisConstants.SECKILL_ORDER_STATUS_TTL);
+    }
+}
@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地的秒杀券售罄标记
+ * 券卖完之后,后面的请求在本地直接拒绝,不用再生成订单id、不用再执行lua脚本
+ * 售罄/补库存通过Redis发布订阅通知到所有节点
+ * 标记有过期时间,过期后放一个请求去Redis确认,避免漏掉补库存的消息导致一直显示售罄
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutCache {
+
+    /**
+     * 优惠券id -> 售罄标记的过期时间(毫秒)
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+            markLocal(voucherId);
+        }, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+            soldOut.remove(voucherId);
+        }, new ChannelTopic(RedisConstants.SECKILL_RESTOCK_CHANNEL));
+    }
+
+    /**
+     * 判断优惠券是否已经售罄,纯内存操作
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            //过期了,放请求去Redis确认一次
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄,并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        markLocal(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 补库存之后清除售罄标记,并通知其他节点
+     */
+    public void clearSoldOut(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    private void markLocal(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis() + seckillProperties.getSoldOutTtlMillis());
+    }
+}
@@ -0,0 +1,225 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 秒杀库存的本地租约
+ * 每个节点一次从Redis的 seckill:stock:{id} 里原子地扣一批库存(比如200个)到本地,
+ * 请求在本地用无锁的计数器扣库存,本地快用完时异步再租一批,库存检查不再走网络
+ * 秒杀结束或者节点关闭时,把没卖完的库存还回Redis
+ * 续租、归还和还回本地租约都在租约对象的锁里判断是否已经关闭,关闭之后晚到的库存直接还回Redis,不会丢
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("stock_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    //异步续租的线程池,守护线程,节点关闭时先停掉它再归还租约
+    private final ExecutorService leaseRefillExecutor = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "seckill-lease-refill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 优惠券id -> 本地租到的库存
+     */
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
+
+    private static class Lease {
+        //本地剩余的库存
+        private final AtomicInteger units = new AtomicInteger();
+        //是否正在异步续租
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        //是否已经归还,在锁里修改
+        private boolean closed;
+    }
+
+    /**
+     * 从本地租约里扣一个库存
+     * @return true代表扣减成功,false代表本地和Redis的库存都卖完了
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+        while (true) {
+            //1.本地还有库存,CAS扣减
+            int units = lease.units.get();
+            if (units > 0) {
+                if (!lease.units.compareAndSet(units, units - 1)) {
+                    continue;
+                }
+                //快用完了,异步续租
+                if (units - 1 <= seckillProperties.getStockLease().getLowWaterMark()) {
+                    refillAsync(voucherId, lease);
+                }
+                return true;
+            }
+            //2.本地没有了,已经知道Redis也卖完了,直接返回
+            if (seckillSoldOutCache.isSoldOut(voucherId)) {
+                return false;
+            }
+            //3.同步续租,同一张券只让一个线程去Redis租,其他线程等它租完再重新扣
+            synchronized (lease) {
+                if (lease.closed) {
+                    //租约刚被归还,换一个新的租约重新扣
+                    lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+                    continue;
+                }
+                if (lease.units.get() > 0) {
+                    continue;
+                }
+                if (refill(voucherId, lease) <= 0) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 把扣掉的库存还回本地租约,比如用户重复下单的时候
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            synchronized (lease) {
+                if (!lease.closed) {
+                    lease.units.incrementAndGet();
+                    return;
+                }
+            }
+        }
+        //租约已经归还了,这个库存直接还回Redis
+        returnToRedis(voucherId, 1);
+    }
+
+    private void refillAsync(Long voucherId, Lease lease) {
+        if (!lease.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        leaseRefillExecutor.submit(() -> {
+            try {
+                refill(voucherId, lease);
+            } catch (Exception e) {
+                log.error("续租秒杀库存异常, voucherId:{}", voucherId, e);
+            } finally {
+                lease.refilling.set(false);
+            }
+        });
+    }
+
+    /**
+     * 从Redis租一批库存加到本地,和归还互斥,已经归还的租约不再续租
+     * @return 租到的数量
+     */
+    private long refill(Long voucherId, Lease lease) {
+        synchronized (lease) {
+            if (lease.closed) {
+                return 0;
+            }
+            return doRefill(voucherId, lease);
+        }
+    }
+
+    private long doRefill(Long voucherId, Lease lease) {
+        Long got = stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), String.valueOf(seckillProperties.getStockLease().getSize()));
+        long n = got == null ? 0 : got;
+        if (n > 0) {
+            lease.units.addAndGet((int) n);
+        }
+        return n;
+    }
+
+    /**
+     * 定时把已经结束的秒杀券的剩余租约还回Redis
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stock-lease.return-interval-millis:10000}")
+    public void returnExpiredLeases() {
+        LocalDateTime now = LocalDateTime.now();
+        for (Long voucherId : leases.keySet()) {
+            SeckillVoucher voucher = seckillVoucherCache.get(voucherId);
+            if (voucher == null || voucher.getEndTime().isBefore(now)) {
+                returnLease(voucherId);
+            }
+        }
+    }
+
+    /**
+     * 节点关闭时,把所有剩余的租约还回Redis
+     */
+    @PreDestroy
+    public void returnAll() {
+        leaseRefillExecutor.shutdown();
+        try {
+            leaseRefillExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Long voucherId : leases.keySet()) {
+            returnLease(voucherId);
+        }
+    }
+
+    private void returnLease(Long voucherId) {
+        Lease lease = leases.remove(voucherId);
+        if (lease == null) {
+            return;
+        }
+        int units;
+        //和续租、release用同一把锁,关闭之后它们不会再往这个租约里加库存
+        synchronized (lease) {
+            lease.closed = true;
+            units = lease.units.getAndSet(0);
+        }
+        if (units > 0) {
+            returnToRedis(voucherId, units);
+            log.info("归还秒杀库存租约, voucherId:{}, 数量:{}", voucherId, units);
+        }
+    }
+
+    private void returnToRedis(Long voucherId, int units) {
+        try {
+            stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId, units);
+        } catch (Exception e) {
+            log.error("归还秒杀库存租约失败, voucherId:{}, 数量:{}", voucherId, units, e);
+        }
+    }
+}
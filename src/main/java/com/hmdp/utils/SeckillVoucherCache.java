@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * 秒杀券元数据的本地快照
+ * 秒杀请求在本地校验优惠券是否存在、是否在秒杀时间内、Redis库存是否已经初始化,
+ * 不合法的请求不用生成订单id,也不用执行lua脚本
+ * 快照定时刷新,秒杀券变化时通过Redis发布订阅通知所有节点立即刷新
+ */
+@Slf4j
+@Component
+public class SeckillVoucherCache {
+
+    /**
+     * 优惠券id -> 秒杀券,整体替换,读的时候不用加锁
+     */
+    private volatile Map<Long, SeckillVoucher> vouchers = Collections.emptyMap();
+
+    /**
+     * Redis里已经初始化了库存的秒杀券id
+     */
+    private volatile Set<Long> stockReady = Collections.emptySet();
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        refresh();
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> refresh(),
+                new ChannelTopic(RedisConstants.SECKILL_VOUCHER_CHANGED_CHANNEL));
+    }
+
+    /**
+     * 获取秒杀券,不存在或者已经结束超过一天的返回null
+     */
+    public SeckillVoucher get(Long voucherId) {
+        return vouchers.get(voucherId);
+    }
+
+    /**
+     * Redis里的库存是否已经初始化
+     */
+    public boolean isStockReady(Long voucherId) {
+        return stockReady.contains(voucherId);
+    }
+
+    /**
+     * 重新加载快照:结束时间在一天以内的秒杀券,以及它们在Redis里的库存key是否存在
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.voucher-refresh-millis:60000}")
+    public synchronized void refresh() {
+        try {
+            //1.查询还没结束(或刚结束)的秒杀券
+            List<SeckillVoucher> list = seckillVoucherService.query()
+                    .ge("end_time", LocalDateTime.now().minusDays(1)).list();
+            Map<Long, SeckillVoucher> map = new HashMap<>(list.size() * 2);
+            for (SeckillVoucher voucher : list) {
+                map.put(voucher.getVoucherId(), voucher);
+            }
+            //2.用管道一次查询所有库存key是否存在
+            List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (SeckillVoucher voucher : list) {
+                    conn.exists(RedisConstants.SECKILL_STOCK_KEY + voucher.getVoucherId());
+                }
+                return null;
+            });
+            Set<Long> ready = new HashSet<>(list.size() * 2);
+            for (int i = 0; i < list.size(); i++) {
+                if (Boolean.TRUE.equals(exists.get(i))) {
+                    ready.add(list.get(i).getVoucherId());
+                }
+            }
+            //3.整体替换
+            vouchers = map;
+            stockReady = ready;
+        } catch (Exception e) {
+            log.error("刷新秒杀券快照异常", e);
+        }
+    }
+
+    /**
+     * 通知所有节点刷新快照,在事务里调用的话,等事务提交之后再通知
+     */
+    public void notifyChanged() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_VOUCHER_CHANGED_CHANNEL, "1");
+                }
+            });
+            return;
+        }
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_VOUCHER_CHANGED_CHANNEL, "1");
+    }
+}
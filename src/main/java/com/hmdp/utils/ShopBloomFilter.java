@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 店铺id的布隆过滤器,防止用不存在的id刷接口造成缓存穿透
+ * 启动时从tb_shop全量构建本地位数组,再和Redis里的bitmap(bloom:shop)合并,Redis里保存所有节点的并集
+ * 新增店铺时同时写本地和Redis,并通过发布订阅通知其他节点;定时从Redis合并一次,防止漏掉通知
+ * 构建失败时不注册到CacheClient,查询照常走Redis和数据库
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter {
+
+    /**
+     * 构建时每次从数据库查询的id数量
+     */
+    private static final int BUILD_PAGE_SIZE = 5000;
+
+    private volatile BloomFilter filter;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @PostConstruct
+    private void init() {
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        if (!config.isEnabled()) {
+            return;
+        }
+        try {
+            BloomFilter bloomFilter = new BloomFilter(config.getExpectedInsertions(), config.getFpp());
+            long count = build(bloomFilter);
+            syncRedis(bloomFilter);
+            filter = bloomFilter;
+            redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                    bloomFilter.put(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8))),
+                    new ChannelTopic(RedisConstants.CACHE_SHOP_BLOOM_CHANNEL));
+            cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, bloomFilter);
+            log.info("店铺布隆过滤器构建完成, 店铺数:{}, 位数组:{}位, 本地内存:{}KB, Redis bitmap:{}KB, 哈希函数:{}个, 设计误判率:{}, 当前估计误判率:{}",
+                    count, bloomFilter.bitSize(), bloomFilter.memoryBytes() >> 10, ((bloomFilter.bitSize() + 7) >>> 3) >> 10,
+                    bloomFilter.hashCount(), config.getFpp(), String.format("%.6f", bloomFilter.expectedFpp()));
+            if (count > config.getExpectedInsertions()) {
+                log.warn("店铺数{}超过了布隆过滤器的预计元素数{},误判率会升高,请调大hmdp.cache.bloom.expected-insertions",
+                        count, config.getExpectedInsertions());
+            }
+        } catch (Exception e) {
+            log.error("店铺布隆过滤器构建失败,不启用", e);
+        }
+    }
+
+    /**
+     * 新增店铺后调用,写本地和Redis,并通知其他节点
+     */
+    public void add(Long shopId) {
+        BloomFilter bloomFilter = filter;
+        if (bloomFilter == null) {
+            return;
+        }
+        bloomFilter.put(shopId);
+        long[] offsets = bloomFilter.offsets(shopId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                conn.setBit(RedisConstants.CACHE_SHOP_BLOOM_KEY, offset, true);
+            }
+            return null;
+        });
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_SHOP_BLOOM_CHANNEL, shopId.toString());
+    }
+
+    /**
+     * 定时把Redis里的bitmap合并到本地,补上漏掉的通知
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.bloom.sync-interval-millis:60000}")
+    public void refresh() {
+        BloomFilter bloomFilter = filter;
+        if (bloomFilter == null) {
+            return;
+        }
+        try {
+            byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.stringCommands().get(key(RedisConstants.CACHE_SHOP_BLOOM_KEY)));
+            if (bytes != null) {
+                bloomFilter.merge(bytes);
+            }
+            log.debug("店铺布隆过滤器当前估计误判率:{}", String.format("%.6f", bloomFilter.expectedFpp()));
+        } catch (Exception e) {
+            log.error("同步店铺布隆过滤器失败", e);
+        }
+    }
+
+    /**
+     * 按id分页查询tb_shop,把所有店铺id放进布隆过滤器
+     * @return 店铺数量
+     */
+    private long build(BloomFilter bloomFilter) {
+        long count = 0;
+        long lastId = 0;
+        while (true) {
+            List<Object> ids = shopMapper.selectObjs(new QueryWrapper<Shop>().select("id")
+                    .gt("id", lastId).orderByAsc("id").last("limit " + BUILD_PAGE_SIZE));
+            for (Object id : ids) {
+                lastId = ((Number) id).longValue();
+                bloomFilter.put(lastId);
+            }
+            count += ids.size();
+            if (ids.size() < BUILD_PAGE_SIZE) {
+                return count;
+            }
+        }
+    }
+
+    /**
+     * 本地位数组和Redis的bitmap合并:先写到临时key,BITOP OR到bloom:shop,再把结果读回来合并到本地
+     * 用OR而不是直接覆盖,不会丢掉其他节点刚写进去的位
+     */
+    private void syncRedis(BloomFilter bloomFilter) {
+        byte[] key = key(RedisConstants.CACHE_SHOP_BLOOM_KEY);
+        byte[] tmpKey = key(RedisConstants.CACHE_SHOP_BLOOM_KEY + ":tmp:" + System.nanoTime());
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> {
+            connection.stringCommands().set(tmpKey, bloomFilter.toBytes());
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, key, key, tmpKey);
+            connection.keyCommands().del(tmpKey);
+            return connection.stringCommands().get(key);
+        });
+        if (bytes != null) {
+            bloomFilter.merge(bytes);
+        }
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import java.util.function.LongSupplier;
+
+/**
+ * 雪花算法id生成器,完全在本地生成,不访问Redis
+ * 结构是: 符号位(1位)+标记位(1位,固定是1)+毫秒时间戳(40位,从2022-01-01开始,可以用34年)+workerId(10位)+序列号(12位)
+ * 标记位用来和RedisIdWorker的id(符号位+31位秒级时间戳+32位计数器)分开:RedisIdWorker的时间戳要到2056年才会用到第62位,
+ * 在那之前两种id不会重叠,hmdp.id.generator从redis切到snowflake时不会和库里已有的订单id主键冲突;
+ * 雪花算法的id总是比RedisIdWorker的id大,切回redis后新id会比之前的小,所以切换只应该从redis到snowflake单向进行
+ * workerId由SnowflakeWorkerIdLease从Redis租来,保证同一时间集群里不重复;每次发号都向租约要workerId,
+ * 租约过期或者丢了就报错,workerId被别的实例占了重新租到新的之后,直接用新的workerId发号
+ */
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    //开始时间 2022-01-01 00:00:00 UTC,和RedisIdWorker一样
+    static final long BEGIN_MILLIS = 1640995200000L;
+    static final int WORKER_ID_BITS = 10;
+    static final int SEQUENCE_BITS = 12;
+    static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    static final int TIMESTAMP_BITS = 40;
+    static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    //第62位,RedisIdWorker的id在2056年之前这一位都是0
+    static final long TAG = 1L << 62;
+
+    /**
+     * 当前的workerId,租约失效时抛出IllegalStateException
+     */
+    private final LongSupplier workerId;
+
+    /**
+     * 毫秒时钟,测试时可以替换
+     */
+    private final LongSupplier clock;
+
+    /**
+     * 时钟回拨不超过这个毫秒数时等时钟追上来,超过了直接报错,避免生成重复id
+     */
+    private final long maxBackwardMillis;
+
+    private long lastMillis = -1;
+    private long sequence;
+
+    public SnowflakeIdGenerator(long workerId, long maxBackwardMillis) {
+        this(workerId, maxBackwardMillis, System::currentTimeMillis);
+    }
+
+    public SnowflakeIdGenerator(SnowflakeWorkerIdLease lease, long maxBackwardMillis) {
+        this(lease::currentWorkerId, maxBackwardMillis, System::currentTimeMillis);
+    }
+
+    SnowflakeIdGenerator(long workerId, long maxBackwardMillis, LongSupplier clock) {
+        this(fixed(workerId), maxBackwardMillis, clock);
+    }
+
+    SnowflakeIdGenerator(LongSupplier workerId, long maxBackwardMillis, LongSupplier clock) {
+        this.workerId = workerId;
+        this.maxBackwardMillis = maxBackwardMillis;
+        this.clock = clock;
+    }
+
+    private static LongSupplier fixed(long workerId) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("workerId必须在0到" + MAX_WORKER_ID + "之间: " + workerId);
+        }
+        return () -> workerId;
+    }
+
+    /**
+     * 雪花算法不区分业务,前缀只是为了实现同一个接口
+     */
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        //0.先拿workerId,租约失效时直接报错,不改动序列号
+        long worker = workerId.getAsLong();
+        long now = clock.getAsLong();
+        if (now < lastMillis) {
+            //1.时钟回拨了,回拨得不多就等时钟追上来,回拨太多直接报错
+            long backward = lastMillis - now;
+            if (backward > maxBackwardMillis) {
+                throw new IllegalStateException("时钟回拨了" + backward + "ms,拒绝生成id");
+            }
+            now = waitUntil(lastMillis);
+        }
+        if (now == lastMillis) {
+            //2.同一毫秒内序列号加1,用完了就等下一毫秒
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) {
+                now = waitUntil(lastMillis + 1);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = now;
+        long timestamp = now - BEGIN_MILLIS;
+        if (timestamp > MAX_TIMESTAMP) {
+            throw new IllegalStateException("雪花算法的时间戳用完了,拒绝生成id");
+        }
+        //3.拼接,加上标记位
+        return TAG | timestamp << (WORKER_ID_BITS + SEQUENCE_BITS) | worker << SEQUENCE_BITS | sequence;
+    }
+
+    /**
+     * 自旋等到时钟不小于target
+     */
+    private long waitUntil(long target) {
+        long now = clock.getAsLong();
+        while (now < target) {
+            Thread.yield();
+            now = clock.getAsLong();
+        }
+        return now;
+    }
+}
@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * 从Redis租一个雪花算法的workerId: SET id:worker:{n} 实例标识 NX EX ttl
+ * 租到之后定时续约(心跳),停机时释放;Redis短暂不可用时只是续约失败,本地照常生成id,
+ * 只要在过期前恢复就不影响,过期了也会在恢复后重新占上
+ * 本地记录租约的有效期(最后一次续约成功前的时间 + ttl,不会晚于Redis里key的过期时间),
+ * 超过有效期还没续约成功,或者发现workerId被别的实例占了,就不再发号,避免和别的实例生成重复id;
+ * 被占了会马上重新租一个新的workerId,租到后继续发号
+ * 只在 hmdp.id.generator=snowflake 时由IdGeneratorConfig创建
+ */
+@Slf4j
+public class SnowflakeWorkerIdLease {
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_id_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        //释放和释放分布式锁一样,是自己的才删除
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final long ttlSeconds;
+
+    /**
+     * 实例标识,pid@主机名 + 随机数,同一台机器重启后也不一样
+     */
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID();
+
+    /**
+     * 毫秒时钟,测试时可以替换
+     */
+    private final LongSupplier clock;
+
+    /**
+     * 当前的租约,workerId和有效期一起替换,发号线程不会看到新workerId配旧有效期
+     */
+    private volatile Lease lease;
+
+    public SnowflakeWorkerIdLease(StringRedisTemplate stringRedisTemplate, long ttlSeconds) {
+        this(stringRedisTemplate, ttlSeconds, System::currentTimeMillis);
+    }
+
+    SnowflakeWorkerIdLease(StringRedisTemplate stringRedisTemplate, long ttlSeconds, LongSupplier clock) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlSeconds = ttlSeconds;
+        this.clock = clock;
+    }
+
+    /**
+     * 当前可以用来发号的workerId,租约过期或者已经丢了就报错,不能继续发号
+     */
+    public long currentWorkerId() {
+        Lease current = lease;
+        if (current == null) {
+            throw new IllegalStateException("没有租到雪花算法workerId,拒绝生成id");
+        }
+        if (clock.getAsLong() >= current.validUntil) {
+            throw new IllegalStateException("雪花算法workerId:" + current.workerId + "的租约已过期,拒绝生成id");
+        }
+        return current.workerId;
+    }
+
+    /**
+     * 从随机的位置开始找一个没被占用的workerId,全部被占用就启动失败
+     */
+    public synchronized long acquire() {
+        //有效期从发命令之前算,保证不晚于Redis里key的过期时间
+        long start = clock.getAsLong();
+        long size = SnowflakeIdGenerator.MAX_WORKER_ID + 1;
+        long offset = ThreadLocalRandom.current().nextLong(size);
+        for (long i = 0; i < size; i++) {
+            long candidate = (offset + i) % size;
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.ID_WORKER_KEY + candidate, owner, Duration.ofSeconds(ttlSeconds));
+            if (Boolean.TRUE.equals(success)) {
+                lease = new Lease(candidate, start + ttlSeconds * 1000);
+                log.info("租到雪花算法workerId:{}", candidate);
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("没有可用的雪花算法workerId");
+    }
+
+    /**
+     * 心跳续约,间隔要比过期时间短得多,Redis抖动几次也不会过期
+     * 续约失败时租约照常到期,到期后currentWorkerId报错;发现被别的实例占了就马上停止发号,重新租一个
+     */
+    @Scheduled(fixedDelayString = "${hmdp.id.snowflake.renew-interval-millis:10000}")
+    public synchronized void renew() {
+        Lease current = lease;
+        if (current == null) {
+            return;
+        }
+        long start = clock.getAsLong();
+        Long result;
+        try {
+            result = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + current.workerId), owner, String.valueOf(ttlSeconds));
+        } catch (Exception e) {
+            //Redis暂时不可用,下次再续约
+            log.warn("续约雪花算法workerId:{}失败", current.workerId, e);
+            return;
+        }
+        if (result != null && result == 1) {
+            lease = new Lease(current.workerId, start + ttlSeconds * 1000);
+            return;
+        }
+        //被别的实例占用了,先停止发号,再重新租一个
+        log.error("雪花算法workerId:{}已经被其他实例占用,停止发号并重新租workerId", current.workerId);
+        lease = new Lease(current.workerId, 0);
+        try {
+            acquire();
+        } catch (Exception e) {
+            log.error("重新租雪花算法workerId失败,下次续约时再试", e);
+        }
+    }
+
+    /**
+     * 停机时释放,其他实例可以马上用
+     */
+    public synchronized void release() {
+        Lease current = lease;
+        if (current == null) {
+            return;
+        }
+        //释放之后别的实例可能马上租走,不能再用它发号
+        lease = null;
+        try {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + current.workerId), owner);
+        } catch (Exception e) {
+            log.warn("释放雪花算法workerId:{}失败,等它自己过期", current.workerId, e);
+        }
+    }
+
+    private static final class Lease {
+        private final long workerId;
+        /**
+         * 本地认为租约有效的截止时间,毫秒
+         */
+        private final long validUntil;
+
+        private Lease(long workerId, long validUntil) {
+            this.workerId = workerId;
+            this.validUntil = validUntil;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+-- 升级已有的数据库:一人一单改成由(user_id, voucher_id)唯一索引保证,不再用分布式锁和查询订单数量
+-- 新装的库直接用hmdp.sql,已经带了这个索引;没有这个索引时订单消费者启动会报错
+
+-- 1.先检查有没有已经重复的订单,有的话要先人工处理,否则加索引会失败
+SELECT `user_id`, `voucher_id`, COUNT(*) AS `cnt`
+FROM `tb_voucher_order`
+GROUP BY `user_id`, `voucher_id`
+HAVING COUNT(*) > 1;
+
+-- 2.加唯一索引
+ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
@@ -1,7 +1,7 @@
 -- 异步秒杀的lua脚本
 
--- 先去redis创建1个组
--- XGROUP create stream.orders g1 0 mkstream
+-- 订单stream按优惠券分区,每个分区的消费者组在应用启动和秒杀预热时创建
+-- XGROUP create stream.orders:{p} g1 0 mkstream
 
 -- 1.参数列表
 -- 1.1.优惠券id
@@ -10,17 +10,21 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3订单id
 local orderId = ARGV[3]
+-- 1.4订单stream的分区数
+local partitions = tonumber(ARGV[4])
 
 -- 2.数据key
 -- 2.1库存key 这里拼接不是用 + 而是 ..
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3订单stream key,按voucherId取模选择分区,同一张券的订单总在同一个分区
+local streamKey = 'stream.orders:{' .. (tonumber(voucherId) % partitions) .. '}'
 
 -- 3.脚本业务
 -- 3.1判断库存是否充足,get stockKey
--- 这里字符串是没办法和数值类型做比较的,得转换 tonumber
-if( tonumber(redis.call('get', stockKey)) <= 0) then
+-- 这里字符串是没办法和数值类型做比较的,得转换 tonumber;key不存在时get返回false,tonumber后是nil,按0处理
+if( (tonumber(redis.call('get', stockKey)) or 0) <= 0) then
     -- 库存不足,返回1
     return 1
 end
@@ -33,6 +37,11 @@ end
 redis.call('incrby', stockKey, -1)
 -- 3.5 下单,保存用户 使用sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6发送小新到队列中,XADD stream.orders * k1 v1 k2 v2
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+-- 3.6发送消息到队列中,订单打包成一个字段 o = 版本|订单id|用户id|优惠券id,格式见OrderMessageCodec
+redis.call('xadd', streamKey, '*', 'o', '1|' .. orderId .. '|' .. userId .. '|' .. voucherId)
+-- 3.7 记录订单状态为排队中,消费者落库后改成persisted或rejected,查询订单状态不用查数据库
+-- 过期时间和RedisConstants.SECKILL_ORDER_STATUS_TTL一致,一天
+local statusKey = 'seckill:order:status:' .. orderId
+redis.call('hset', statusKey, 'status', 'queued', 'userId', userId, 'voucherId', voucherId)
+redis.call('expire', statusKey, 86400)
+return 0
@@ -0,0 +1,43 @@
+-- 一个用户一次抢多张秒杀券的lua脚本,一次EVAL里逐张判断并下单,返回每张券的结果
+-- 同一个分区的订单打包成一条消息,消费者在一个事务里一起落库
+
+-- 1.参数列表
+-- 1.1 用户id
+local userId = ARGV[1]
+-- 1.2订单stream的分区数
+local partitions = tonumber(ARGV[2])
+-- 1.3 后面是 优惠券id,订单id 成对出现
+local count = (#ARGV - 2) / 2
+
+-- 2.逐张处理,结果 0:下单成功 1:库存不足 2:重复下单
+local results = {}
+-- 分区 -> 打包的订单 orderId|voucherId|orderId|voucherId...
+local messages = {}
+for i = 1, count do
+    local voucherId = ARGV[1 + 2 * i]
+    local orderId = ARGV[2 + 2 * i]
+    local orderKey = 'seckill:order:' .. voucherId
+    -- 2.1判断库存和是否重复下单,逻辑和seckill.lua一样
+    local stockKey = 'seckill:stock:' .. voucherId
+    if( (tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+        results[i] = 1
+    elseif (redis.call('sismember', orderKey, userId) == 1) then
+        results[i] = 2
+    else
+        -- 2.2扣库存、下单,订单状态为排队中,和seckill.lua一样
+        redis.call('incrby', stockKey, -1)
+        redis.call('sadd', orderKey, userId)
+        local statusKey = 'seckill:order:status:' .. orderId
+        redis.call('hset', statusKey, 'status', 'queued', 'userId', userId, 'voucherId', voucherId)
+        redis.call('expire', statusKey, 86400)
+        local partition = tonumber(voucherId) % partitions
+        messages[partition] = (messages[partition] or '') .. '|' .. orderId .. '|' .. voucherId
+        results[i] = 0
+    end
+end
+
+-- 3.每个分区发一条消息 o = 2|用户id|订单id|优惠券id|订单id|优惠券id...,格式见OrderMessageCodec
+for partition, orders in pairs(messages) do
+    redis.call('xadd', 'stream.orders:{' .. partition .. '}', '*', 'o', '2|' .. userId .. orders)
+end
+return results
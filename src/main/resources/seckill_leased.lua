@@ -0,0 +1,35 @@
+-- 本地租约模式下的秒杀lua脚本
+-- 库存已经在本地扣过了(库存从Redis租到本地),这里只判断一人一单并发送订单消息
+
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2 用户id
+local userId = ARGV[2]
+-- 1.3订单id
+local orderId = ARGV[3]
+-- 1.4订单stream的分区数
+local partitions = tonumber(ARGV[4])
+
+-- 2.数据key
+-- 2.1订单key
+local orderKey = 'seckill:order:' .. voucherId
+-- 2.2订单stream key,和seckill.lua一样按voucherId取模选择分区
+local streamKey = 'stream.orders:{' .. (tonumber(voucherId) % partitions) .. '}'
+
+-- 3.脚本业务
+-- 3.1.判断用户是否下单 使用SISMEMBER orderKey userId
+if( redis.call('sismember', orderKey, userId) == 1) then
+    -- 存在说明是重复下单,返回2
+    return 2
+end
+-- 3.2 下单,保存用户 使用sadd orderKey userId
+redis.call('sadd', orderKey, userId)
+-- 3.3发送消息到队列中,订单打包成一个字段 o = 版本|订单id|用户id|优惠券id,格式见OrderMessageCodec
+redis.call('xadd', streamKey, '*', 'o', '1|' .. orderId .. '|' .. userId .. '|' .. voucherId)
+-- 3.4 记录订单状态为排队中,消费者落库后改成persisted或rejected,查询订单状态不用查数据库
+-- 过期时间和RedisConstants.SECKILL_ORDER_STATUS_TTL一致,一天
+local statusKey = 'seckill:order:status:' .. orderId
+redis.call('hset', statusKey, 'status', 'queued', 'userId', userId, 'voucherId', voucherId)
+redis.call('expire', statusKey, 86400)
+return 0
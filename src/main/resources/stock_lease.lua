@@ -0,0 +1,21 @@
+-- 从Redis的秒杀库存里一次租一批库存到本地
+
+-- 1.参数列表
+-- 1.1优惠券id
+local voucherId = ARGV[1]
+-- 1.2想要租的数量
+local need = tonumber(ARGV[2])
+
+-- 2.库存key
+local key = 'seckill:stock:' .. voucherId
+
+-- 3.能扣多少扣多少,不会把库存扣成负数
+local stock = tonumber(redis.call('get', key)) or 0
+if (stock <= 0) then
+    -- 库存已经卖完了
+    return 0
+end
+local got = math.min(stock, need)
+redis.call('incrby', key, -got)
+-- 返回实际租到的数量
+return got
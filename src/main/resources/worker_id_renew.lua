@@ -0,0 +1,13 @@
+-- 续约雪花算法的workerId,KEYS[1]是workerId的key,ARGV[1]是当前实例的标识,ARGV[2]是过期秒数
+
+-- 还是自己的,续期
+if(redis.call('get', KEYS[1]) == ARGV[1]) then
+    redis.call('expire', KEYS[1], ARGV[2])
+    return 1
+end
+-- 已经过期了(比如Redis短暂不可用导致没有按时续约),没有被别人占用的话重新占上
+if(redis.call('set', KEYS[1], ARGV[1], 'NX', 'EX', ARGV[2])) then
+    return 1
+end
+-- 被别的实例占用了
+return 0
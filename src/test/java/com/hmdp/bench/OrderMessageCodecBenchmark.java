@@ -0,0 +1,75 @@
+package com.hmdp.bench;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderMessageCodec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 订单消息解码的微基准:原来的BeanUtil.fillBeanWithMap反射解码 vs OrderMessageCodec手写解码
+ * 不是单元测试,不会在mvn test里执行,mvn test-compile之后直接运行main方法(在IDE里运行或者java -cp 带上测试classpath)
+ */
+public class OrderMessageCodecBenchmark {
+
+    private static final int WARM_UP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+    private static final int OPS = 1_000_000;
+
+    public static void main(String[] args) {
+        //模拟从stream读出来的消息,值都是字符串
+        Map<Object, Object> legacy = new HashMap<>();
+        legacy.put("userId", "1010");
+        legacy.put("voucherId", "7");
+        legacy.put("id", "298195462342754306");
+        Map<Object, Object> packed = new HashMap<>();
+        packed.put(OrderMessageCodec.FIELD, OrderMessageCodec.encode(298195462342754306L, 1010L, 7L));
+
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            runReflective(legacy);
+            runPacked(packed);
+        }
+        long reflective = Long.MAX_VALUE;
+        long codec = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            reflective = Math.min(reflective, runReflective(legacy));
+            codec = Math.min(codec, runPacked(packed));
+        }
+        System.out.printf("BeanUtil.fillBeanWithMap : %.1f ns/op%n", (double) reflective / OPS);
+        System.out.printf("OrderMessageCodec.decode : %.1f ns/op%n", (double) codec / OPS);
+    }
+
+    private static long runReflective(Map<Object, Object> value) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            VoucherOrder order = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+            sink += order.getId() ^ order.getUserId();
+        }
+        long cost = System.nanoTime() - start;
+        consume(sink);
+        return cost;
+    }
+
+    private static long runPacked(Map<Object, Object> value) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            VoucherOrder order = OrderMessageCodec.decode(value);
+            sink += order.getId() ^ order.getUserId();
+        }
+        long cost = System.nanoTime() - start;
+        consume(sink);
+        return cost;
+    }
+
+    /**
+     * 使用计算结果,避免JIT把整个循环优化掉
+     */
+    private static void consume(long sink) {
+        if (sink == 42) {
+            System.out.println(sink);
+        }
+    }
+}
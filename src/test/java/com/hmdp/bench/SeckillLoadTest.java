@@ -0,0 +1,224 @@
+package com.hmdp.bench;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillVoucherCache;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀压测和超卖校验,默认不执行,发布前用 mvn test -Pbench 执行,需要本地的Redis和MySQL(见application-bench.yaml)
+ * 1.新建一张秒杀券,模拟users个用户每人抢attempts次,直接调用seckillVoucher(不经过HTTP)
+ * 2.统计吞吐量和p50/p99/p999延迟,压测期间每500ms采样一次消费者落库的积压
+ * 3.等订单全部落库后,校验Redis库存、seckill:order集合和tb_voucher_order三者一致,没有超卖也没有一人多单
+ * 参数: -Dbench.users=5000 -Dbench.stock=1000 -Dbench.attempts=2 -Dbench.threads=200
+ */
+@Tag("bench")
+@SpringBootTest
+@ActiveProfiles("bench")
+class SeckillLoadTest {
+
+    private static final int USERS = Integer.getInteger("bench.users", 5000);
+    private static final int STOCK = Integer.getInteger("bench.stock", 1000);
+    private static final int ATTEMPTS = Integer.getInteger("bench.attempts", 2);
+    private static final int THREADS = Integer.getInteger("bench.threads", 200);
+
+    /**
+     * 压测用户id从这里开始,避免和真实用户冲突
+     */
+    private static final long USER_ID_BASE = 1_000_000_000L;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
+
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void seckillLoadAndConsistency() throws Exception {
+        Long voucherId = createVoucher();
+
+        //1.打乱顺序的请求,每个用户ATTEMPTS次
+        List<Long> requests = new ArrayList<>(USERS * ATTEMPTS);
+        for (int a = 0; a < ATTEMPTS; a++) {
+            for (int i = 0; i < USERS; i++) {
+                requests.add(USER_ID_BASE + i);
+            }
+        }
+        Collections.shuffle(requests);
+
+        AtomicInteger success = new AtomicInteger();
+        AtomicInteger soldOut = new AtomicInteger();
+        AtomicInteger duplicate = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long[] latencies = new long[requests.size()];
+        AtomicInteger index = new AtomicInteger();
+
+        //2.压测期间采样消费者积压:已经抢到的订单数 - 已经落库的订单数
+        List<String> lagSamples = Collections.synchronizedList(new ArrayList<>());
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        long begin = System.nanoTime();
+        sampler.scheduleAtFixedRate(() -> {
+            long persisted = countOrders(voucherId);
+            lagSamples.add(String.format("t=%5dms accepted=%d persisted=%d lag=%d",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), success.get(), persisted, success.get() - persisted));
+        }, 0, 500, TimeUnit.MILLISECONDS);
+
+        //3.并发抢券
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch done = new CountDownLatch(requests.size());
+        for (Long userId : requests) {
+            pool.submit(() -> {
+                UserDTO user = new UserDTO();
+                user.setId(userId);
+                UserHolder.saveUser(user);
+                long start = System.nanoTime();
+                try {
+                    Result result = voucherOrderService.seckillVoucher(voucherId);
+                    if (Boolean.TRUE.equals(result.getSuccess())) {
+                        success.incrementAndGet();
+                    } else if ("库存不足".equals(result.getErrorMsg())) {
+                        soldOut.incrementAndGet();
+                    } else if ("不能重复下单".equals(result.getErrorMsg())) {
+                        duplicate.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    latencies[index.getAndIncrement()] = System.nanoTime() - start;
+                    UserHolder.removeUser();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+
+        //4.等订单全部落库,最多等60秒
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (countOrders(voucherId) < success.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+        }
+        //多采一次,看到积压清零
+        Thread.sleep(600);
+        sampler.shutdown();
+
+        //5.报告
+        Arrays.sort(latencies);
+        System.out.println("========== 秒杀压测 voucherId=" + voucherId + " ==========");
+        System.out.printf("用户:%d 每人请求:%d 线程:%d 库存:%d%n", USERS, ATTEMPTS, THREADS, STOCK);
+        System.out.printf("请求:%d 耗时:%dms 吞吐量:%.0f req/s%n", requests.size(),
+                TimeUnit.NANOSECONDS.toMillis(elapsed), requests.size() * 1e9 / elapsed);
+        System.out.printf("延迟 p50:%.2fms p99:%.2fms p999:%.2fms max:%.2fms%n",
+                percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                latencies[latencies.length - 1] / 1e6);
+        System.out.printf("抢到:%d 库存不足:%d 重复下单:%d 其他失败:%d%n", success.get(), soldOut.get(), duplicate.get(), failed.get());
+        System.out.println("消费者积压:");
+        lagSamples.forEach(System.out::println);
+
+        //6.一致性校验
+        if (seckillProperties.getStockLease().isEnabled()) {
+            //本地租约里剩下的库存还回Redis,再比较Redis库存
+            seckillStockLease.returnAll();
+        }
+        long redisStock = redisStock(voucherId);
+        Long redisBuyers = stringRedisTemplate.opsForSet().size(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+        List<Object> dbUsers = voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>()
+                .select("user_id").eq("voucher_id", voucherId));
+        SeckillVoucher dbVoucher = seckillVoucherService.getById(voucherId);
+        System.out.printf("Redis库存:%d Redis已购用户:%d 数据库订单:%d 数据库库存:%d%n",
+                redisStock, redisBuyers, dbUsers.size(), dbVoucher.getStock());
+
+        assertEquals(0, failed.get(), "不应该有其他失败");
+        assertTrue(success.get() <= STOCK, "超卖了");
+        assertEquals(Math.min(STOCK, USERS), success.get(), "库存足够时每个用户都应该抢到,否则库存应该卖完");
+        assertEquals(STOCK - success.get(), redisStock, "Redis库存和抢到的数量对不上");
+        assertEquals(success.get(), redisBuyers.intValue(), "seckill:order集合和抢到的数量对不上");
+        assertEquals(success.get(), dbUsers.size(), "数据库订单和抢到的数量对不上");
+        assertEquals(dbUsers.size(), new HashSet<>(dbUsers).size(), "数据库里有一人多单");
+        assertEquals(STOCK - dbUsers.size(), dbVoucher.getStock().intValue(), "数据库库存和订单数对不上");
+    }
+
+    /**
+     * 新建一张已经开始的秒杀券,并刷新本地快照
+     */
+    private Long createVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setSubTitle("bench");
+        voucher.setRules("bench");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        seckillVoucherCache.refresh();
+        return voucher.getId();
+    }
+
+    private long countOrders(Long voucherId) {
+        return voucherOrderService.count(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+    }
+
+    private long redisStock(Long voucherId) {
+        String stock = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+        return stock == null ? 0 : Long.parseLong(stock);
+    }
+
+    private static double percentile(long[] sorted, double q) {
+        int i = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 订单消息编解码的单元测试,不需要Spring容器
+ */
+class OrderMessageCodecTest {
+
+    private static Map<Object, Object> packed(String o) {
+        Map<Object, Object> value = new HashMap<>();
+        value.put(OrderMessageCodec.FIELD, o);
+        return value;
+    }
+
+    private static void assertOrder(VoucherOrder order, long orderId, long userId, long voucherId) {
+        assertEquals(orderId, order.getId());
+        assertEquals(userId, order.getUserId());
+        assertEquals(voucherId, order.getVoucherId());
+    }
+
+    @Test
+    void encodeThenDecodeRoundTrips() {
+        long orderId = 283467841537458177L;
+        String o = OrderMessageCodec.encode(orderId, 1010L, 7L);
+        assertEquals("1|283467841537458177|1010|7", o);
+        assertOrder(OrderMessageCodec.decode(o), orderId, 1010L, 7L);
+        //decodeAll对版本1的消息返回一个订单
+        List<VoucherOrder> orders = OrderMessageCodec.decodeAll(packed(o));
+        assertEquals(1, orders.size());
+        assertOrder(orders.get(0), orderId, 1010L, 7L);
+    }
+
+    @Test
+    void decodesLegacyFields() {
+        Map<Object, Object> value = new HashMap<>();
+        value.put("id", "123");
+        value.put("userId", "1010");
+        value.put("voucherId", "7");
+        assertOrder(OrderMessageCodec.decode(value), 123L, 1010L, 7L);
+        List<VoucherOrder> orders = OrderMessageCodec.decodeAll(value);
+        assertEquals(1, orders.size());
+        assertOrder(orders.get(0), 123L, 1010L, 7L);
+    }
+
+    @Test
+    void decodesBatchWithMultipleOrders() {
+        List<VoucherOrder> orders = OrderMessageCodec.decodeAll(packed("2|1010|101|7|102|8|103|9"));
+        assertEquals(3, orders.size());
+        assertOrder(orders.get(0), 101L, 1010L, 7L);
+        assertOrder(orders.get(1), 102L, 1010L, 8L);
+        assertOrder(orders.get(2), 103L, 1010L, 9L);
+    }
+
+    @Test
+    void decodesBatchWithSingleOrder() {
+        List<VoucherOrder> orders = OrderMessageCodec.decodeAll(packed("2|1010|101|7"));
+        assertEquals(1, orders.size());
+        assertOrder(orders.get(0), 101L, 1010L, 7L);
+    }
+
+    @Test
+    void rejectsMalformedSingleOrder() {
+        String[] malformed = {"", "1", "1|", "1|123", "1|123|1010", "1|123|1010|", "1|12a|1010|7",
+                "1|123|1010|7|8", "3|123|1010|7", "1||1010|7"};
+        for (String o : malformed) {
+            assertThrows(IllegalArgumentException.class, () -> OrderMessageCodec.decode(o), o);
+            assertThrows(IllegalArgumentException.class, () -> OrderMessageCodec.decodeAll(packed(o)), o);
+        }
+    }
+
+    @Test
+    void rejectsMalformedBatch() {
+        String[] malformed = {"2", "2|", "2|1010", "2|1010|", "2|1010|101", "2|1010|101|", "2|1010|101|7|102",
+                "2|1010|101|7|102|", "2|1010|101|x", "2x1010|101|7"};
+        for (String o : malformed) {
+            assertThrows(IllegalArgumentException.class, () -> OrderMessageCodec.decodeAll(packed(o)), o);
+        }
+    }
+
+    @Test
+    void rejectsLegacyWithMissingField() {
+        Map<Object, Object> value = new HashMap<>();
+        value.put("id", "123");
+        value.put("userId", "1010");
+        assertThrows(IllegalArgumentException.class, () -> OrderMessageCodec.decodeAll(value));
+    }
+}
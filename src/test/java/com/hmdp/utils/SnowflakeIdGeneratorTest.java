@@ -0,0 +1,126 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 雪花算法id生成器的单元测试,不需要Spring容器,时钟用可控的假时钟
+ */
+class SnowflakeIdGeneratorTest {
+
+    private static final long T = SnowflakeIdGenerator.BEGIN_MILLIS + 1000;
+
+    private static long millisOf(long id) {
+        return ((id >>> (SnowflakeIdGenerator.WORKER_ID_BITS + SnowflakeIdGenerator.SEQUENCE_BITS)) & SnowflakeIdGenerator.MAX_TIMESTAMP)
+                + SnowflakeIdGenerator.BEGIN_MILLIS;
+    }
+
+    private static long workerOf(long id) {
+        return (id >>> SnowflakeIdGenerator.SEQUENCE_BITS) & SnowflakeIdGenerator.MAX_WORKER_ID;
+    }
+
+    private static long sequenceOf(long id) {
+        return id & SnowflakeIdGenerator.MAX_SEQUENCE;
+    }
+
+    /**
+     * 按顺序返回给定的时间,用完之后一直返回最后一个
+     */
+    private static LongSupplier scripted(long... millis) {
+        Deque<Long> queue = new ArrayDeque<>();
+        Arrays.stream(millis).forEach(queue::add);
+        AtomicLong last = new AtomicLong(millis[millis.length - 1]);
+        return () -> {
+            Long next = queue.poll();
+            return next == null ? last.get() : next;
+        };
+    }
+
+    @Test
+    void layoutAndUniqueness() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(7, 10);
+        Set<Long> ids = new HashSet<>();
+        long previous = 0;
+        for (int i = 0; i < 100_000; i++) {
+            long id = generator.nextId("order");
+            assertTrue(id > previous, "id应该单调递增");
+            assertEquals(7, workerOf(id));
+            ids.add(id);
+            previous = id;
+        }
+        assertEquals(100_000, ids.size());
+    }
+
+    @Test
+    void sequenceOverflowWaitsForNextMillisecond() {
+        //前4096次都在T这一毫秒,之后时钟走到T+1
+        AtomicLong reads = new AtomicLong();
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, 10,
+                () -> reads.incrementAndGet() <= SnowflakeIdGenerator.MAX_SEQUENCE + 2 ? T : T + 1);
+        for (long i = 0; i <= SnowflakeIdGenerator.MAX_SEQUENCE; i++) {
+            long id = generator.nextId("order");
+            assertEquals(T, millisOf(id));
+            assertEquals(i, sequenceOf(id));
+        }
+        //第4097个id序列号用完了,等到下一毫秒,序列号从0开始
+        long id = generator.nextId("order");
+        assertEquals(T + 1, millisOf(id));
+        assertEquals(0, sequenceOf(id));
+    }
+
+    @Test
+    void smallClockBackwardWaitsForClockToCatchUp() {
+        //T生成一个id后,时钟回拨到T-3,再慢慢走回T
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, 10, scripted(T, T - 3, T - 2, T - 1, T));
+        long first = generator.nextId("order");
+        long second = generator.nextId("order");
+        assertTrue(second > first);
+        assertEquals(T, millisOf(second));
+        assertEquals(1, sequenceOf(second));
+    }
+
+    @Test
+    void largeClockBackwardIsRejected() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, 10, scripted(T, T - 11));
+        generator.nextId("order");
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+    }
+
+    @Test
+    void idsNeverOverlapRedisIdWorker() {
+        //RedisIdWorker的id = 秒级时间戳 << 32 | 计数器,取它在2056年之前能生成的最大id
+        long maxRedisId = ((1L << 30) - 1) << 32 | 0xFFFFFFFFL;
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(0, 10, scripted(SnowflakeIdGenerator.BEGIN_MILLIS));
+        long id = generator.nextId("order");
+        assertTrue((id & SnowflakeIdGenerator.TAG) != 0);
+        assertTrue(id > maxRedisId);
+        //2022-01-01之后41天的雪花id,不带标记位时会和当时的Redis id落在同一个范围里
+        long t = SnowflakeIdGenerator.BEGIN_MILLIS + 41L * 86400 * 1000;
+        long redisIdAtT = ((t - SnowflakeIdGenerator.BEGIN_MILLIS) / 1000) << 32;
+        assertTrue(new SnowflakeIdGenerator(0, 10, scripted(t)).nextId("order") > redisIdAtT + 0xFFFFFFFFL);
+    }
+
+    @Test
+    void timestampOverflowIsRejected() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(0, 10,
+                scripted(SnowflakeIdGenerator.BEGIN_MILLIS + SnowflakeIdGenerator.MAX_TIMESTAMP + 1));
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+    }
+
+    @Test
+    void workerIdOutOfRangeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_WORKER_ID + 1, 10));
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdGenerator(-1, 10));
+    }
+}
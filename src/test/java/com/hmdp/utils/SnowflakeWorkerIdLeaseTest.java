@@ -0,0 +1,137 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * workerId租约的单元测试,Redis用mock代替,时钟用可控的假时钟
+ */
+class SnowflakeWorkerIdLeaseTest {
+
+    private static final long TTL_SECONDS = 60;
+    private static final long T = SnowflakeIdGenerator.BEGIN_MILLIS + 1000;
+
+    private final AtomicLong now = new AtomicLong(T);
+
+    /**
+     * Redis里已经被占用的workerId key
+     */
+    private final Set<String> taken = new HashSet<>();
+
+    private StringRedisTemplate stringRedisTemplate;
+    private SnowflakeWorkerIdLease lease;
+    private SnowflakeIdGenerator generator;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        when(ops.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+                .thenAnswer(invocation -> taken.add(invocation.getArgument(0)));
+        lease = new SnowflakeWorkerIdLease(stringRedisTemplate, TTL_SECONDS, now::get);
+        generator = new SnowflakeIdGenerator(lease::currentWorkerId, 10, now::get);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void renewReturns(Long result) {
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(), any())).thenReturn(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void renewFails() {
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(), any()))
+                .thenThrow(new RedisConnectionFailureException("Redis不可用"));
+    }
+
+    private static long workerOf(long id) {
+        return (id >>> SnowflakeIdGenerator.SEQUENCE_BITS) & SnowflakeIdGenerator.MAX_WORKER_ID;
+    }
+
+    @Test
+    void renewExtendsLease() {
+        long workerId = lease.acquire();
+        renewReturns(1L);
+        now.addAndGet(50_000);
+        lease.renew();
+        //续约成功后从续约时刻重新计算有效期
+        now.addAndGet(50_000);
+        assertEquals(workerId, workerOf(generator.nextId("order")));
+    }
+
+    @Test
+    void stopsIssuingWhenRenewKeepsFailingPastTtl() {
+        long workerId = lease.acquire();
+        renewFails();
+        for (int i = 0; i < 5; i++) {
+            now.addAndGet(10_000);
+            lease.renew();
+        }
+        //续约一直失败,租约到期之前照常发号
+        now.set(T + TTL_SECONDS * 1000 - 1);
+        assertEquals(workerId, workerOf(generator.nextId("order")));
+        //到期之后拒绝发号
+        now.set(T + TTL_SECONDS * 1000);
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+        //Redis恢复后续约成功,继续用原来的workerId发号
+        renewReturns(1L);
+        lease.renew();
+        assertEquals(workerId, workerOf(generator.nextId("order")));
+    }
+
+    @Test
+    void reacquiresNewWorkerIdWhenLost() {
+        long lost = lease.acquire();
+        //workerId被别的实例占了
+        renewReturns(0L);
+        now.addAndGet(10_000);
+        lease.renew();
+        long workerId = workerOf(generator.nextId("order"));
+        assertNotEquals(lost, workerId);
+        assertEquals(workerId, lease.currentWorkerId());
+    }
+
+    @Test
+    void stopsIssuingWhenLostAndNoWorkerIdLeft() {
+        lease.acquire();
+        //其他workerId全部被占用
+        for (long i = 0; i <= SnowflakeIdGenerator.MAX_WORKER_ID; i++) {
+            taken.add(RedisConstants.ID_WORKER_KEY + i);
+        }
+        renewReturns(0L);
+        now.addAndGet(10_000);
+        lease.renew();
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+        //有workerId空出来后,下次续约重新租到
+        taken.remove(RedisConstants.ID_WORKER_KEY + 3);
+        lease.renew();
+        assertEquals(3, workerOf(generator.nextId("order")));
+    }
+
+    @Test
+    void stopsIssuingAfterRelease() {
+        lease.acquire();
+        renewReturns(1L);
+        lease.release();
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+    }
+}